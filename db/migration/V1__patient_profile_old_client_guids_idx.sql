@@ -0,0 +1,13 @@
+-- Разовая миграция основной БД, выполняется вручную до развертывания импорта (не при старте приложения).
+-- Поиск пациентов по guid старой системы (old_client_guid - список через запятую).
+-- Выражение должно совпадать с запросом PatientProfileRepository.findByOldClientGuids.
+-- Из списка удаляются все пробельные символы (пробелы, табуляция, переводы строки), как trim() элементов прежде.
+--
+-- CONCURRENTLY строит индекс без блокировки записи в patient_profile и не выполняется в транзакции:
+--   psql -v ON_ERROR_STOP=1 -f V1__patient_profile_old_client_guids_idx.sql
+-- Если построение прервалось, остается невалидный индекс: его нужно удалить
+-- (DROP INDEX CONCURRENTLY patient_profile_old_client_guids_idx) и запустить скрипт снова.
+-- Так же пересоздается индекс, построенный прежней версией скрипта с выражением replace(old_client_guid, ' ', ''):
+-- запрос с новым выражением его не использует.
+CREATE INDEX CONCURRENTLY IF NOT EXISTS patient_profile_old_client_guids_idx
+    ON patient_profile USING gin (string_to_array(regexp_replace(old_client_guid, '\s', '', 'g'), ','));
@@ -0,0 +1,9 @@
+-- Разовая миграция основной БД, выполняется вручную до развертывания импорта (не при старте приложения).
+-- Отпечаток содержимого заметки (NoteFingerprint): обновление с тем же отпечатком не пишется.
+-- У заметок, записанных раньше, отпечаток пустой и появляется при первом обновлении.
+--
+-- Столбец без значения по умолчанию добавляется без перезаписи таблицы, но под ACCESS EXCLUSIVE:
+-- lock_timeout не дает ALTER встать в очередь за долгими транзакциями и задержать все запросы к
+-- patient_note. Если время ожидания вышло, скрипт можно просто запустить еще раз.
+SET lock_timeout = '5s';
+ALTER TABLE patient_note ADD COLUMN IF NOT EXISTS content_hash bigint;
@@ -0,0 +1,192 @@
+package com.ausiankou.notesimporter;
+
+import com.ausiankou.notesimporter.dto.OldClientDto;
+import com.ausiankou.notesimporter.service.ImportOptions;
+import com.ausiankou.notesimporter.service.ImportProgress;
+import com.ausiankou.notesimporter.service.NoteImportService;
+import com.ausiankou.notesimporter.service.NoteImportService.ImportStats;
+import com.ausiankou.notesimporter.service.SimulatedOldSystem;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сквозной бенчмарк импорта: приложение поднимается в профиле simulator, NoteImportService
+ * загружает заметки из встроенного имитатора старой системы в локальную БД (spring.datasource.*).
+ * Каждая итерация - полный прогон (fullResync) после очистки заметок имитируемых пациентов.
+ * Итог - заметки/с, p99 длительности клиента и пиковый heap - пишется в target/e2e-result.json;
+ * при заданном e2e.baseline ухудшение больше e2e.tolerance завершает процесс с кодом 1.
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec@e2e -De2e.args="--simulator.clients=5000 --e2e.iterations=5"
+ * </pre>
+ *
+ * Параметры (аргументы --name=value): e2e.warmups, e2e.iterations, e2e.result, e2e.baseline,
+ * e2e.tolerance, а также любые simulator.* и import.* из application.properties.
+ * Пациенты имитируемых клиентов создаются в patient_profile с first_name = 'Simulated'.
+ */
+public final class EndToEndImportBenchmark {
+    private static final String SEED_PATIENTS_SQL = "INSERT INTO patient_profile (first_name, last_name, old_client_guid, status_id) " +
+            "SELECT 'Simulated', 'Client', guid, 200 FROM unnest(?::text[]) AS guid " +
+            "WHERE NOT EXISTS (SELECT 1 FROM patient_profile p WHERE p.old_client_guid = guid)";
+
+    private static final String CLEAR_NOTES_SQL = "DELETE FROM patient_note WHERE patient_id IN " +
+            "(SELECT id FROM patient_profile WHERE first_name = 'Simulated')";
+
+    private static final String CLEAR_WATERMARKS_SQL = "DELETE FROM client_import_watermark WHERE client_guid = ANY(?::text[])";
+
+    private EndToEndImportBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+                .profiles("simulator")
+                .properties(
+                        "server.port=18080",
+                        "spring.scheduling.enabled=false",
+                        "spring.jpa.show-sql=false",
+                        "import.checkpoint.enabled=false",
+                        "import.cluster.enabled=false",
+                        "logging.level.com.ausiankou=WARN",
+                        "logging.level.org.hibernate.SQL=WARN",
+                        "logging.level.org.hibernate.type.descriptor.sql.BasicBinder=WARN")
+                .run(args);
+
+        int exitCode;
+        try {
+            exitCode = run(context);
+        } finally {
+            context.close();
+        }
+        System.exit(exitCode);
+    }
+
+    private static int run(ConfigurableApplicationContext context) throws Exception {
+        Environment env = context.getEnvironment();
+        int warmups = env.getProperty("e2e.warmups", Integer.class, 1);
+        int iterations = env.getProperty("e2e.iterations", Integer.class, 3);
+        File resultFile = new File(env.getProperty("e2e.result", "target/e2e-result.json"));
+        String baseline = env.getProperty("e2e.baseline");
+        double tolerance = env.getProperty("e2e.tolerance", Double.class, 0.2);
+
+        JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+        NoteImportService noteImportService = context.getBean(NoteImportService.class);
+        MeterRegistry registry = context.getBean(MeterRegistry.class);
+        String[] guids = context.getBean(SimulatedOldSystem.class).getClients().stream()
+                .map(OldClientDto::getGuid)
+                .toArray(String[]::new);
+
+        jdbcTemplate.update(SEED_PATIENTS_SQL, ps -> ps.setArray(1, ps.getConnection().createArrayOf("text", guids)));
+
+        List<Map<String, Object>> measured = new ArrayList<>();
+        for (int i = 0; i < warmups + iterations; i++) {
+            jdbcTemplate.update(CLEAR_NOTES_SQL);
+            jdbcTemplate.update(CLEAR_WATERMARKS_SQL, ps -> ps.setArray(1, ps.getConnection().createArrayOf("text", guids)));
+            registry.find("import.client.duration").timers().forEach(registry::remove);
+            List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                    .filter(pool -> pool.getType() == MemoryType.HEAP)
+                    .toList();
+            System.gc();
+            heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+            ImportProgress progress = new ImportProgress();
+            long start = System.nanoTime();
+            noteImportService.importNotesWhenIdle(ImportOptions.all(true), progress);
+            long nanos = System.nanoTime() - start;
+
+            ImportStats stats = progress.getStats();
+            long notes = stats.getProcessed();
+            // Сумма пиков по пулам heap - оценка сверху, пики пулов могут приходиться на разные моменты
+            long peakHeap = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("iteration", i < warmups ? "warmup-" + (i + 1) : "measure-" + (i - warmups + 1));
+            result.put("clients", progress.getClientsDone());
+            result.put("notes", notes);
+            result.put("errors", stats.getErrors());
+            result.put("seconds", nanos / 1e9);
+            result.put("notesPerSecond", nanos > 0 ? notes * 1e9 / nanos : 0);
+            result.put("clientP99Millis", clientP99Millis(registry));
+            result.put("peakHeapMb", peakHeap / (1024.0 * 1024.0));
+            System.out.println(result);
+            if (i >= warmups) {
+                measured.add(result);
+            }
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("notesPerSecond", median(measured, "notesPerSecond"));
+        summary.put("clientP99Millis", median(measured, "clientP99Millis"));
+        summary.put("peakHeapMb", measured.stream().mapToDouble(r -> (double) r.get("peakHeapMb")).max().orElse(0));
+        summary.put("iterations", measured);
+        System.out.printf("Notes/s: %.0f, client p99: %.1f ms, peak heap: %.0f MB%n",
+                summary.get("notesPerSecond"), summary.get("clientP99Millis"), summary.get("peakHeapMb"));
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        resultFile.getAbsoluteFile().getParentFile().mkdirs();
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(resultFile, summary);
+
+        if (baseline == null || !new File(baseline).exists()) {
+            return 0;
+        }
+        return compareWithBaseline(objectMapper.readValue(new File(baseline), Map.class), summary, tolerance);
+    }
+
+    private static double clientP99Millis(MeterRegistry registry) {
+        Timer timer = registry.find("import.client.duration").timer();
+        if (timer == null) {
+            return 0;
+        }
+        for (ValueAtPercentile value : timer.takeSnapshot().percentileValues()) {
+            if (value.percentile() == 0.99) {
+                return value.value(TimeUnit.MILLISECONDS);
+            }
+        }
+        return 0;
+    }
+
+    private static double median(List<Map<String, Object>> results, String key) {
+        double[] values = results.stream().mapToDouble(r -> ((Number) r.get(key)).doubleValue()).sorted().toArray();
+        return values.length == 0 ? 0 : values[values.length / 2];
+    }
+
+    // Регрессия: пропускная способность ниже или p99/heap выше базовых больше чем на tolerance
+    private static int compareWithBaseline(Map<?, ?> baseline, Map<String, Object> current, double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        check(regressions, "notesPerSecond", baseline, current, -tolerance);
+        check(regressions, "clientP99Millis", baseline, current, tolerance);
+        check(regressions, "peakHeapMb", baseline, current, tolerance);
+        if (regressions.isEmpty()) {
+            System.out.println("No regressions against baseline");
+            return 0;
+        }
+        regressions.forEach(System.out::println);
+        return 1;
+    }
+
+    private static void check(List<String> regressions, String key, Map<?, ?> baseline, Map<String, Object> current,
+                              double allowedChange) {
+        if (!(baseline.get(key) instanceof Number expected)) {
+            return;
+        }
+        double actual = ((Number) current.get(key)).doubleValue();
+        double limit = expected.doubleValue() * (1 + allowedChange);
+        boolean regressed = allowedChange < 0 ? actual < limit : actual > limit;
+        if (regressed) {
+            regressions.add(String.format("Regression in %s: %.1f (baseline %.1f, limit %.1f)",
+                    key, actual, expected.doubleValue(), limit));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.dto.OldClientDto;
+import com.ausiankou.notesimporter.dto.OldNoteDto;
+import com.ausiankou.notesimporter.repository.PatientNoteRepository;
+import com.ausiankou.notesimporter.repository.PatientProfileRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Данные и заглушки для бенчмарков. Генератор с фиксированным seed, поэтому наборы данных
+ * одинаковы от запуска к запуску и результаты сравнимы.
+ */
+final class BenchmarkFixtures {
+    static final long SEED = 42L;
+
+    private static final DateTimeFormatter SPACE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // Транзакции без БД: репозитории в бенчмарках - заглушки в памяти
+    private static final PlatformTransactionManager NO_OP_TRANSACTIONS = new PlatformTransactionManager() {
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) {
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(TransactionStatus status) {
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) {
+        }
+    };
+
+    private BenchmarkFixtures() {
+    }
+
+    static List<OldClientDto> clients(int count) {
+        Random random = new Random(SEED);
+        List<OldClientDto> clients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            OldClientDto client = new OldClientDto();
+            client.setAgency("agency-" + random.nextInt(20));
+            client.setGuid(new UUID(random.nextLong(), random.nextLong()).toString());
+            client.setFirstName("First" + i);
+            client.setLastName("Last" + i);
+            client.setStatus("active");
+            clients.add(client);
+        }
+        return clients;
+    }
+
+    static List<OldNoteDto> notes(int count, boolean isoTimestamps) {
+        Random random = new Random(SEED);
+        LocalDateTime base = LocalDateTime.of(2020, 1, 1, 0, 0);
+        List<OldNoteDto> notes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            LocalDateTime created = base.plusMinutes(random.nextInt(1_000_000));
+            LocalDateTime modified = created.plusMinutes(random.nextInt(10_000));
+            OldNoteDto note = new OldNoteDto();
+            note.setGuid(new UUID(random.nextLong(), random.nextLong()).toString());
+            note.setClientGuid(new UUID(random.nextLong(), random.nextLong()).toString());
+            note.setLoggedUser("user" + random.nextInt(200));
+            note.setComments("Note " + i + " " + "x".repeat(random.nextInt(400)));
+            note.setCreatedDateTimeText(format(created, isoTimestamps));
+            note.setModifiedDateTimeText(format(modified, isoTimestamps));
+            notes.add(note);
+        }
+        return notes;
+    }
+
+    // JSON-ответ старой системы: даты строками, как их отдает API
+    static byte[] notesPayload(ObjectMapper objectMapper, int count, boolean isoTimestamps) throws IOException {
+        List<Map<String, Object>> payload = new ArrayList<>(count);
+        for (OldNoteDto note : notes(count, isoTimestamps)) {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("comments", note.getComments());
+            json.put("guid", note.getGuid());
+            json.put("modifiedDateTime", format(note.getModifiedDateTime(), isoTimestamps));
+            json.put("clientGuid", note.getClientGuid());
+            json.put("loggedUser", note.getLoggedUser());
+            json.put("createdDateTime", format(note.getCreatedDateTime(), isoTimestamps));
+            payload.add(json);
+        }
+        return objectMapper.writeValueAsBytes(payload);
+    }
+
+    static String format(LocalDateTime dateTime, boolean iso) {
+        return iso ? dateTime.toString() : SPACE_FORMAT.format(dateTime);
+    }
+
+    static NoteImportService importService(PatientProfileRepository patientProfileRepository,
+                                           PatientNoteRepository patientNoteRepository) {
+        NoteImportService service = new NoteImportService(null, patientProfileRepository, patientNoteRepository,
+                null, null, null, null, null, null, new ImportMetrics(new SimpleMeterRegistry()),
+                new ImportAuditLog(false, Path.of("import-audit.log"), 2, Duration.ofSeconds(1), DataSize.ofMegabytes(1), 1),
+                new TransactionTemplate(NO_OP_TRANSACTIONS));
+        // Значения по умолчанию из application.properties, @Value вне контекста Spring не применяется
+        ReflectionTestUtils.setField(service, "patientLookupBatchSize", 1000);
+        ReflectionTestUtils.setField(service, "noteBatchSize", 1000);
+        return service;
+    }
+
+    /**
+     * Репозиторий в памяти: реализованы только перечисленные методы, остальные бросают исключение.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T repository(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Function<Object[], Object> handler = methods.get(method.getName());
+            if (handler == null) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            return handler.apply(args);
+        });
+    }
+}
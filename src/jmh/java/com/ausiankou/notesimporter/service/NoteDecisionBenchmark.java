@@ -0,0 +1,104 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.dto.OldNoteDto;
+import com.ausiankou.notesimporter.entity.CompanyUser;
+import com.ausiankou.notesimporter.entity.PatientProfile;
+import com.ausiankou.notesimporter.repository.PatientNoteRepository;
+import com.ausiankou.notesimporter.repository.PatientNoteRepository.ExistingNoteView;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Решение создать/обновить/пропустить для пачки заметок. Репозиторий заметок заменен данными
+ * в памяти: треть заметок новые, треть изменились, треть без изменений.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class NoteDecisionBenchmark {
+    private static final int BATCH = 1000;
+
+    private List<OldNoteDto> batch;
+    private Map<String, CompanyUser> users;
+    private PatientProfile patient;
+    private NoteImportService importService;
+
+    @Setup
+    public void setUp() {
+        batch = BenchmarkFixtures.notes(BATCH, false);
+
+        List<ExistingNoteView> existing = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            OldNoteDto note = batch.get(i);
+            LocalDateTime modified = note.getModifiedDateTime();
+            // Треть - новые, треть - без изменений, остальные - более новые версии: половина из них
+            // с прежним содержимым (только сдвиг даты), половина - записанные до появления отпечатков
+            if (i % 6 == 1) {
+                existing.add(view((long) i, note.getGuid(), modified.minusHours(1), NoteFingerprint.of(note)));
+            } else if (i % 6 == 4) {
+                existing.add(view((long) i, note.getGuid(), modified.minusHours(1), null));
+            } else if (i % 3 == 2) {
+                existing.add(view((long) i, note.getGuid(), modified, NoteFingerprint.of(note)));
+            }
+        }
+
+        users = new HashMap<>();
+        for (OldNoteDto note : batch) {
+            users.computeIfAbsent(note.getLoggedUser(), login -> {
+                CompanyUser user = new CompanyUser();
+                user.setId((long) login.hashCode());
+                user.setLogin(login);
+                return user;
+            });
+        }
+
+        patient = new PatientProfile();
+        patient.setId(1L);
+
+        Function<Object[], Object> noWrite = args -> args[0];
+        PatientNoteRepository repository = BenchmarkFixtures.repository(PatientNoteRepository.class, Map.of(
+                "findExistingByOldNoteGuidIn", args -> existing,
+                "save", noWrite,
+                "updateContent", args -> 1));
+        importService = BenchmarkFixtures.importService(null, repository);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public NoteImportService.ImportStats decide() {
+        NoteImportService.ImportStats stats = new NoteImportService.ImportStats();
+        importService.executeWrite(importService.planJpaWrite(batch, patient, users, stats), patient, stats);
+        return stats;
+    }
+
+    private static ExistingNoteView view(Long id, String guid, LocalDateTime modified, Long contentHash) {
+        return new ExistingNoteView() {
+            @Override
+            public Long getId() {
+                return id;
+            }
+
+            @Override
+            public String getOldNoteGuid() {
+                return guid;
+            }
+
+            @Override
+            public LocalDateTime getLastModifiedDateTime() {
+                return modified;
+            }
+
+            @Override
+            public Long getContentHash() {
+                return contentHash;
+            }
+        };
+    }
+}
@@ -0,0 +1,44 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.dto.OldNoteDto;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор большого ответа /notes: целиком в OldNoteDto[] и потоково через OldSystemClient.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class NoteDeserializationBenchmark {
+    @Param({"1000", "50000"})
+    private int notes;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private OldSystemClient oldSystemClient;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = BenchmarkFixtures.notesPayload(objectMapper, notes, false);
+        oldSystemClient = new OldSystemClient(null, objectMapper, null, null);
+    }
+
+    @Benchmark
+    public OldNoteDto[] wholeArray() throws IOException {
+        return objectMapper.readValue(payload, OldNoteDto[].class);
+    }
+
+    @Benchmark
+    public int streaming(Blackhole blackhole) throws IOException {
+        return oldSystemClient.readArray(new ByteArrayInputStream(payload), OldNoteDto.class, blackhole::consume);
+    }
+}
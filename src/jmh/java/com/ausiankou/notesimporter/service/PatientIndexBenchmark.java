@@ -0,0 +1,96 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.dto.OldClientDto;
+import com.ausiankou.notesimporter.entity.PatientProfile;
+import com.ausiankou.notesimporter.repository.PatientProfileRepository;
+import com.ausiankou.notesimporter.repository.PatientProfileRepository.PatientGuidView;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Построение индекса guid -> пациент. {@code guidQuery} - текущий путь через запрос по guid
+ * (ответ БД подменен данными в памяти), {@code commaSplit} - прежний разбор old_client_guid в Java
+ * для сравнения.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PatientIndexBenchmark {
+    @Param({"10000", "100000"})
+    private int clients;
+
+    private List<OldClientDto> oldClients;
+    private List<PatientProfile> patients;
+    private NoteImportService importService;
+
+    @Setup
+    public void setUp() {
+        oldClients = BenchmarkFixtures.clients(clients);
+
+        // У каждого второго пациента два guid старой системы через запятую
+        patients = new ArrayList<>();
+        Map<String, PatientGuidView> viewsByGuid = new HashMap<>();
+        for (int i = 0; i < oldClients.size(); i += 2) {
+            PatientProfile patient = new PatientProfile();
+            patient.setId((long) i);
+            patient.setStatusId((short) 200);
+            String first = oldClients.get(i).getGuid();
+            String second = i + 1 < oldClients.size() ? oldClients.get(i + 1).getGuid() : null;
+            patient.setOldClientGuids(second != null ? first + ", " + second : first);
+            patients.add(patient);
+            viewsByGuid.put(first, view(first, patient));
+            if (second != null) {
+                viewsByGuid.put(second, view(second, patient));
+            }
+        }
+
+        Function<Object[], Object> findByOldClientGuids = args -> Arrays.stream(((String) args[0]).split(","))
+                .map(viewsByGuid::get)
+                .filter(Objects::nonNull)
+                .toList();
+        PatientProfileRepository repository = BenchmarkFixtures.repository(PatientProfileRepository.class,
+                Map.of("findByOldClientGuids", findByOldClientGuids));
+        importService = BenchmarkFixtures.importService(repository, null);
+    }
+
+    @Benchmark
+    public Map<String, PatientProfile> guidQuery() {
+        return importService.getPatientsByGuid(oldClients);
+    }
+
+    @Benchmark
+    public Map<String, PatientProfile> commaSplit() {
+        Map<String, PatientProfile> result = new HashMap<>();
+        for (PatientProfile patient : patients) {
+            for (String guid : patient.getOldClientGuids().split(",")) {
+                result.put(guid.trim(), patient);
+            }
+        }
+        return result;
+    }
+
+    private static PatientGuidView view(String guid, PatientProfile patient) {
+        return new PatientGuidView() {
+            @Override
+            public String getGuid() {
+                return guid;
+            }
+
+            @Override
+            public Long getId() {
+                return patient.getId();
+            }
+
+            @Override
+            public Short getStatusId() {
+                return patient.getStatusId();
+            }
+        };
+    }
+}
@@ -0,0 +1,60 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.dto.OldDateTimeParser;
+import com.ausiankou.notesimporter.dto.OldNoteDto;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор дат заметок в обоих форматах старой системы: "yyyy-MM-dd HH:mm:ss" и ISO.
+ * {@code formatterWithFallback} - прежний способ (DateTimeFormatter и повтор после исключения),
+ * оставлен для сравнения с {@link OldDateTimeParser}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TimestampParsingBenchmark {
+    private static final int SIZE = 1024;
+    private static final DateTimeFormatter SPACE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    @Param({"space", "iso"})
+    private String format;
+
+    private String[] values;
+
+    @Setup
+    public void setUp() {
+        values = BenchmarkFixtures.notes(SIZE, false).stream()
+                .map(OldNoteDto::getModifiedDateTime)
+                .map(date -> BenchmarkFixtures.format(date, "iso".equals(format)))
+                .toArray(String[]::new);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void oldDateTimeParser(Blackhole blackhole) {
+        for (String value : values) {
+            blackhole.consume(OldDateTimeParser.parse(value));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void formatterWithFallback(Blackhole blackhole) {
+        for (String value : values) {
+            try {
+                blackhole.consume(LocalDateTime.parse(value, SPACE_FORMAT));
+            } catch (DateTimeParseException e) {
+                blackhole.consume(LocalDateTime.parse(value, DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+            }
+        }
+    }
+}
@@ -1,9 +1,20 @@
 package com.ausiankou.notesimporter.config;
 
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.StringHttpMessageConverter;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
@@ -15,15 +26,54 @@ import java.util.List;
 
 @Configuration
 public class AppConfig {
+
+    // Пул соединений к старой системе: размер совпадает с лимитом одновременных запросов импорта
+    @Bean(destroyMethod = "close")
+    public PoolingHttpClientConnectionManager oldSystemConnectionManager(
+            @Value("${old.system.http.max-connections:16}") int maxConnections,
+            @Value("${old.system.http.connect-timeout:5s}") Duration connectTimeout,
+            @Value("${old.system.http.read-timeout:30s}") Duration readTimeout,
+            @Value("${old.system.http.connection-ttl:5m}") Duration connectionTtl) {
+        return PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.of(connectTimeout))
+                        .setSocketTimeout(Timeout.of(readTimeout))
+                        .setTimeToLive(TimeValue.of(connectionTtl))
+                        .setValidateAfterInactivity(TimeValue.ofSeconds(10))
+                        .build())
+                .build();
+    }
+
+    // Статистика пула (leased/available/pending/max) в метриках httpcomponents.httpclient.pool.*
+    @Bean
+    public MeterBinder oldSystemConnectionPoolMetrics(PoolingHttpClientConnectionManager oldSystemConnectionManager) {
+        return new PoolingHttpClientConnectionManagerMetricsBinder(oldSystemConnectionManager, "old-system");
+    }
+
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient oldSystemHttpClient(
+            PoolingHttpClientConnectionManager oldSystemConnectionManager,
+            @Value("${old.system.http.read-timeout:30s}") Duration readTimeout,
+            @Value("${old.system.http.pool-acquire-timeout:10s}") Duration poolAcquireTimeout,
+            @Value("${old.system.http.idle-timeout:1m}") Duration idleTimeout) {
+        // Keep-alive и сжатие (Accept-Encoding: gzip, deflate) HttpClient включает сам
+        return HttpClients.custom()
+                .setConnectionManager(oldSystemConnectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(Timeout.of(poolAcquireTimeout))
+                        .setResponseTimeout(Timeout.of(readTimeout))
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.of(idleTimeout))
+                .build();
+    }
+
     @Bean
-    public RestTemplate restTemplate(RestTemplateBuilder builder) {
+    public RestTemplate restTemplate(RestTemplateBuilder builder, CloseableHttpClient oldSystemHttpClient) {
         RestTemplate restTemplate = builder
-                .requestFactory(() -> {
-                    SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
-                    factory.setConnectTimeout(Duration.ofSeconds(30));
-                    factory.setReadTimeout(Duration.ofSeconds(30));
-                    return factory;
-                })
+                .requestFactory(() -> new HttpComponentsClientHttpRequestFactory(oldSystemHttpClient))
                 .build();
 
         // Добавляем конвертеры
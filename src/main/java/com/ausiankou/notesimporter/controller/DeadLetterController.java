@@ -0,0 +1,29 @@
+package com.ausiankou.notesimporter.controller;
+
+import com.ausiankou.notesimporter.entity.ImportDeadLetter;
+import com.ausiankou.notesimporter.service.DeadLetterService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * Просмотр хранилища ошибок импорта. Повтор запускается заданием импорта
+ * ({@code POST /api/import/jobs} с {@code "replayDeadLetters": true}) или по расписанию.
+ */
+@RestController
+@RequestMapping("/api/import/dead-letters")
+@RequiredArgsConstructor
+public class DeadLetterController {
+    private final DeadLetterService deadLetterService;
+
+    // status: PENDING или EXHAUSTED, без параметра - все записи; сначала последние ошибки
+    @GetMapping
+    public List<ImportDeadLetter> list(@RequestParam(required = false) String status,
+                                       @RequestParam(defaultValue = "100") int limit) {
+        return deadLetterService.list(status, limit);
+    }
+}
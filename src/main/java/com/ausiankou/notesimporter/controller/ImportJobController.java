@@ -0,0 +1,140 @@
+package com.ausiankou.notesimporter.controller;
+
+import com.ausiankou.notesimporter.dto.ImportJobRequest;
+import com.ausiankou.notesimporter.dto.ImportJobStatus;
+import com.ausiankou.notesimporter.service.ImportJob;
+import com.ausiankou.notesimporter.service.ImportJobService;
+import com.ausiankou.notesimporter.service.ImportOptions;
+import com.ausiankou.notesimporter.service.ImportProgress;
+import com.ausiankou.notesimporter.service.NoteImportService.ImportStats;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Задания импорта: запуск без ожидания, статус, поток прогресса (SSE) и отмена.
+ */
+@RestController
+@RequestMapping("/api/import/jobs")
+@RequiredArgsConstructor
+public class ImportJobController {
+    private final ImportJobService importJobService;
+
+    // Период отправки прогресса в /progress
+    @Value("${import.jobs.progress-interval:1s}")
+    private Duration progressInterval;
+
+    @PostMapping
+    public ResponseEntity<ImportJobStatus> submit(@RequestBody(required = false) ImportJobRequest request) {
+        ImportOptions options = request == null ? ImportOptions.all(false)
+                : new ImportOptions(request.isFullResync(), request.getAgencies(), request.getClientGuids(),
+                        request.isReplayDeadLetters());
+        ImportJob job = importJobService.submit(options);
+        return ResponseEntity.accepted()
+                .location(URI.create("/api/import/jobs/" + job.getId()))
+                .body(toStatus(job));
+    }
+
+    @GetMapping
+    public List<ImportJobStatus> list() {
+        return importJobService.list().stream().map(ImportJobController::toStatus).toList();
+    }
+
+    @GetMapping("/{id}")
+    public ImportJobStatus status(@PathVariable String id) {
+        return toStatus(findJob(id));
+    }
+
+    // Снимок статуса раз в progressInterval, последнее событие - после завершения задания
+    @GetMapping(path = "/{id}/progress", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter progress(@PathVariable String id) {
+        ImportJob job = findJob(id);
+        SseEmitter emitter = new SseEmitter(0L);
+        Thread.ofVirtual().name("import-job-progress-" + id).start(() -> {
+            try {
+                while (true) {
+                    boolean finished = job.isFinished();
+                    emitter.send(SseEmitter.event().name("progress").data(toStatus(job)));
+                    if (finished) {
+                        break;
+                    }
+                    Thread.sleep(progressInterval.toMillis());
+                }
+                emitter.complete();
+            } catch (IOException e) {
+                // Клиент отключился
+                emitter.completeWithError(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                emitter.complete();
+            }
+        });
+        return emitter;
+    }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<ImportJobStatus> cancel(@PathVariable String id) {
+        ImportJob job = importJobService.cancel(id)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Import job not found: " + id));
+        return ResponseEntity.accepted().body(toStatus(job));
+    }
+
+    private ImportJob findJob(String id) {
+        return importJobService.find(id)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Import job not found: " + id));
+    }
+
+    private static ImportJobStatus toStatus(ImportJob job) {
+        ImportProgress progress = job.getProgress();
+        ImportStats stats = progress.getStats();
+        Duration eta = job.isFinished() ? null : progress.getEta();
+        return ImportJobStatus.builder()
+                .id(job.getId())
+                .state(job.getState().name())
+                .fullResync(job.getOptions().fullResync())
+                .replayDeadLetters(job.getOptions().replayDeadLetters())
+                .agencies(job.getOptions().agencies())
+                .clientGuids(job.getOptions().clientGuids())
+                .submittedAt(job.getSubmittedAt())
+                .startedAt(job.getStartedAt())
+                .finishedAt(job.getFinishedAt())
+                .clientsTotal(progress.getClientsTotal())
+                .clientsDone(progress.getClientsDone())
+                .imported(stats.getImported())
+                .updated(stats.getUpdated())
+                .skippedUnchanged(stats.getSkippedUnchanged())
+                .skipped(stats.getSkipped())
+                .errors(stats.getErrors())
+                .rejected(stats.getRejected())
+                .agencyStats(toAgencyStats(stats))
+                .notesPerSecond(progress.getNotesPerSecond())
+                .etaSeconds(eta != null ? eta.toSeconds() : null)
+                .error(job.getError())
+                .build();
+    }
+
+    private static Map<String, ImportJobStatus.AgencyStats> toAgencyStats(ImportStats stats) {
+        Map<String, ImportJobStatus.AgencyStats> result = new TreeMap<>();
+        stats.getByAgency().forEach((agency, agencyStats) -> result.put(agency, ImportJobStatus.AgencyStats.builder()
+                .imported(agencyStats.getImported())
+                .updated(agencyStats.getUpdated())
+                .skippedUnchanged(agencyStats.getSkippedUnchanged())
+                .skipped(agencyStats.getSkipped())
+                .errors(agencyStats.getErrors())
+                .rejected(agencyStats.getRejected())
+                .build()));
+        return result;
+    }
+}
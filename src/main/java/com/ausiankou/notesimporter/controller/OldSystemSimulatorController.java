@@ -0,0 +1,59 @@
+package com.ausiankou.notesimporter.controller;
+
+import com.ausiankou.notesimporter.service.SimulatedOldSystem;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Map;
+
+/**
+ * Эндпоинты старой системы (/clients, /notes) поверх {@link SimulatedOldSystem}. В профиле
+ * simulator импорт ходит сюда же: old.system.api.base-url указывает на /simulator этого приложения.
+ */
+@RestController
+@RequestMapping("/simulator")
+@Profile("simulator")
+@RequiredArgsConstructor
+public class OldSystemSimulatorController {
+    private final SimulatedOldSystem simulatedOldSystem;
+    private final ObjectMapper objectMapper;
+
+    @PostMapping("/clients")
+    public void clients(HttpServletResponse response) throws IOException, InterruptedException {
+        if (simulatedOldSystem.shouldFail()) {
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value());
+            return;
+        }
+        simulatedOldSystem.simulateLatency(0);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        objectMapper.writeValue(response.getOutputStream(), simulatedOldSystem.getClients());
+    }
+
+    @PostMapping("/notes")
+    public void notes(@RequestBody Map<String, String> request, HttpServletResponse response)
+            throws IOException, InterruptedException {
+        if (simulatedOldSystem.shouldFail()) {
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value());
+            return;
+        }
+        String clientGuid = request.get("clientGuid");
+        simulatedOldSystem.simulateLatency(simulatedOldSystem.noteCount(clientGuid));
+
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            simulatedOldSystem.writeNotes(clientGuid,
+                    LocalDate.parse(request.get("dateFrom")), LocalDate.parse(request.get("dateTo")), generator);
+        }
+    }
+}
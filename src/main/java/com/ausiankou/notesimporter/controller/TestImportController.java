@@ -1,20 +1,24 @@
 package com.ausiankou.notesimporter.controller;
 
-import com.ausiankou.notesimporter.service.NoteImportService;
+import com.ausiankou.notesimporter.service.ImportJob;
+import com.ausiankou.notesimporter.service.ImportJobService;
+import com.ausiankou.notesimporter.service.ImportOptions;
 import lombok.RequiredArgsConstructor;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 @RestController
 @RequestMapping("/api/test")
 @RequiredArgsConstructor
 public class TestImportController {
-    private final NoteImportService noteImportService;
+    private final ImportJobService importJobService;
 
+    // Прогон идет в фоне, статус - /api/import/jobs/{id}
     @GetMapping("/run-import")
-    public String runImportManually() {
-        noteImportService.importNotes();
-        return "Import completed manually";
+    public String runImportManually(@RequestParam(defaultValue = "false") boolean fullResync) {
+        ImportJob job = importJobService.submit(ImportOptions.all(fullResync));
+        return "Import job submitted: " + job.getId();
     }
 }
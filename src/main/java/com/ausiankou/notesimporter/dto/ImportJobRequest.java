@@ -0,0 +1,15 @@
+package com.ausiankou.notesimporter.dto;
+
+import lombok.Data;
+
+import java.util.Set;
+
+@Data
+public class ImportJobRequest {
+    private boolean fullResync;
+    // Пусто - все агентства / все клиенты
+    private Set<String> agencies;
+    private Set<String> clientGuids;
+    // Повторить только записи хранилища ошибок, срок которых наступил; остальные поля не учитываются
+    private boolean replayDeadLetters;
+}
@@ -0,0 +1,49 @@
+package com.ausiankou.notesimporter.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+
+@Data
+@Builder
+public class ImportJobStatus {
+    private String id;
+    private String state;
+    private boolean fullResync;
+    private boolean replayDeadLetters;
+    private Set<String> agencies;
+    private Set<String> clientGuids;
+    private Instant submittedAt;
+    private Instant startedAt;
+    private Instant finishedAt;
+    private int clientsTotal;
+    private int clientsDone;
+    private int imported;
+    private int updated;
+    // Более новые версии с прежним содержимым, запись не выполнялась
+    private int skippedUnchanged;
+    private int skipped;
+    private int errors;
+    // Отложенные для разбора вручную, см. import_dead_letter со статусом EXHAUSTED
+    private int rejected;
+    // Итоги завершенных клиентов по агентствам
+    private Map<String, AgencyStats> agencyStats;
+    private double notesPerSecond;
+    // Оценка оставшегося времени, null - пока не завершен ни один клиент
+    private Long etaSeconds;
+    private String error;
+
+    @Data
+    @Builder
+    public static class AgencyStats {
+        private int imported;
+        private int updated;
+        private int skippedUnchanged;
+        private int skipped;
+        private int errors;
+        private int rejected;
+    }
+}
@@ -0,0 +1,84 @@
+package com.ausiankou.notesimporter.dto;
+
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.Year;
+
+/**
+ * Разбор дат старой системы без исключений и без DateTimeFormatter. Формат определяется по
+ * разделителю даты и времени: "yyyy-MM-dd HH:mm:ss" или ISO "yyyy-MM-ddTHH:mm[:ss[.SSSSSSSSS]]".
+ * Для строки, не подходящей ни под один формат, возвращается null.
+ */
+public final class OldDateTimeParser {
+    private static final int[] NANO_SCALE = {
+            100_000_000, 10_000_000, 1_000_000, 100_000, 10_000, 1_000, 100, 10, 1
+    };
+
+    private OldDateTimeParser() {
+    }
+
+    public static LocalDateTime parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        int length = value.length();
+        if (length < 16 || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(13) != ':') {
+            return null;
+        }
+
+        char separator = value.charAt(10);
+        boolean iso = separator == 'T';
+        // Формат с пробелом всегда с секундами и без долей
+        if (!iso && (separator != ' ' || length != 19)) {
+            return null;
+        }
+
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 7);
+        int day = digits(value, 8, 10);
+        int hour = digits(value, 11, 13);
+        int minute = digits(value, 14, 16);
+        int second = 0;
+        int nano = 0;
+
+        if (length > 16) {
+            if (length < 19 || value.charAt(16) != ':') {
+                return null;
+            }
+            second = digits(value, 17, 19);
+            if (length > 19) {
+                int fractionDigits = length - 20;
+                if (value.charAt(19) != '.' || fractionDigits < 1 || fractionDigits > 9) {
+                    return null;
+                }
+                int fraction = digits(value, 20, length);
+                if (fraction < 0) {
+                    return null;
+                }
+                nano = fraction * NANO_SCALE[fractionDigits - 1];
+            }
+        }
+
+        if (year < 0 || month < 1 || month > 12 || day < 1 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return null;
+        }
+        if (day > Month.of(month).length(Year.isLeap(year))) {
+            return null;
+        }
+        return LocalDateTime.of(year, month, day, hour, minute, second, nano);
+    }
+
+    // Неотрицательное число из цифр value[from, to) или -1, если встретилась не цифра
+    private static int digits(String value, int from, int to) {
+        int result = 0;
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
@@ -1,14 +1,49 @@
 package com.ausiankou.notesimporter.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonSetter;
 import lombok.Data;
 
+import java.time.LocalDateTime;
+
 @Data
 public class OldNoteDto {
     private String comments;
     private String guid;
-    private String modifiedDateTime;
+    private LocalDateTime modifiedDateTime;
     private String clientGuid;
     private String datetime;
     private String loggedUser;
-    private String createdDateTime;
+    private LocalDateTime createdDateTime;
+
+    // Исходные строки дат, которые не удалось разобрать. Такая заметка не импортируется, а строки
+    // сохраняются вместе с ней в хранилище ошибок
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String invalidTimestamps;
+
+    // Даты разбираются один раз, при десериализации ответа старой системы
+    @JsonSetter("modifiedDateTime")
+    public void setModifiedDateTimeText(String value) {
+        modifiedDateTime = parseTimestamp("modifiedDateTime", value);
+    }
+
+    @JsonSetter("createdDateTime")
+    public void setCreatedDateTimeText(String value) {
+        createdDateTime = parseTimestamp("createdDateTime", value);
+    }
+
+    @JsonIgnore
+    public boolean hasValidTimestamps() {
+        return invalidTimestamps == null && createdDateTime != null && modifiedDateTime != null;
+    }
+
+    private LocalDateTime parseTimestamp(String field, String value) {
+        LocalDateTime parsed = OldDateTimeParser.parse(value);
+        if (parsed == null && value != null) {
+            String invalid = field + "='" + value + "'";
+            invalidTimestamps = invalidTimestamps == null ? invalid : invalidTimestamps + ", " + invalid;
+        }
+        return parsed;
+    }
 }
@@ -0,0 +1,28 @@
+package com.ausiankou.notesimporter.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "client_import_watermark")
+@Data
+public class ClientImportWatermark {
+    @Id
+    @Column(name = "client_guid")
+    private String clientGuid;
+
+    private String agency;
+
+    // Максимальная дата изменения заметки, уже импортированной для клиента
+    @Column(name = "last_modified_date_time")
+    private LocalDateTime lastModifiedDateTime;
+
+    // Когда для клиента последний раз загружалась вся история
+    @Column(name = "last_full_sync_at")
+    private LocalDateTime lastFullSyncAt;
+
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+}
@@ -0,0 +1,54 @@
+package com.ausiankou.notesimporter.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+// Заметка или клиент, обработка которых завершилась ошибкой; повторяется отдельно от прогонов
+@Entity
+@Table(name = "import_dead_letter")
+@Data
+public class ImportDeadLetter {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // NOTE или CLIENT
+    private String kind;
+
+    // guid заметки или клиента
+    @Column(name = "item_key")
+    private String itemKey;
+
+    @Column(name = "client_guid")
+    private String clientGuid;
+
+    private String agency;
+
+    @Column(name = "patient_id")
+    private Long patientId;
+
+    // JSON заметки или клиента в формате старой системы
+    private String payload;
+
+    @Column(name = "error_class")
+    private String errorClass;
+
+    @Column(name = "error_message")
+    private String errorMessage;
+
+    private Integer attempts;
+
+    // PENDING - ждет повтора, EXHAUSTED - попытки исчерпаны, нужен разбор вручную
+    private String status;
+
+    @Column(name = "first_failed_at")
+    private LocalDateTime firstFailedAt;
+
+    @Column(name = "last_failed_at")
+    private LocalDateTime lastFailedAt;
+
+    @Column(name = "next_attempt_at")
+    private LocalDateTime nextAttemptAt;
+}
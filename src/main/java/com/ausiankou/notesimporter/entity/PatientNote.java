@@ -35,4 +35,8 @@ public class PatientNote {
 
     @Column(unique = true)
     private String oldNoteGuid; // GUID из старой системы
+
+    // Отпечаток содержимого (NoteFingerprint): заметка с тем же отпечатком не переписывается
+    @Column(name = "content_hash")
+    private Long contentHash;
 }
@@ -0,0 +1,7 @@
+package com.ausiankou.notesimporter.repository;
+
+import com.ausiankou.notesimporter.entity.ClientImportWatermark;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface ClientImportWatermarkRepository extends JpaRepository<ClientImportWatermark, String> {
+}
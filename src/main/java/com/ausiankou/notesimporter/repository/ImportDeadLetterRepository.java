@@ -0,0 +1,70 @@
+package com.ausiankou.notesimporter.repository;
+
+import com.ausiankou.notesimporter.entity.ImportDeadLetter;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+public interface ImportDeadLetterRepository extends JpaRepository<ImportDeadLetter, Long> {
+
+    /**
+     * Новая ошибка или повторная ошибка той же заметки/клиента: счетчик попыток растет, следующий
+     * повтор откладывается экспоненциально (initialBackoff * 2^(attempts - 1), не больше maxBackoff).
+     */
+    @Transactional
+    @Modifying
+    @Query(value = """
+            INSERT INTO import_dead_letter (kind, item_key, client_guid, agency, patient_id, payload,
+                                            error_class, error_message, attempts, status,
+                                            first_failed_at, last_failed_at, next_attempt_at)
+            VALUES (:kind, :itemKey, :clientGuid, :agency, :patientId, :payload, :errorClass, :errorMessage,
+                    1, CASE WHEN :maxAttempts <= 1 THEN 'EXHAUSTED' ELSE 'PENDING' END,
+                    localtimestamp, localtimestamp, localtimestamp + make_interval(secs => :initialBackoffSeconds))
+            ON CONFLICT (kind, item_key) DO UPDATE
+                SET client_guid = COALESCE(EXCLUDED.client_guid, import_dead_letter.client_guid),
+                    agency = COALESCE(EXCLUDED.agency, import_dead_letter.agency),
+                    patient_id = COALESCE(EXCLUDED.patient_id, import_dead_letter.patient_id),
+                    payload = COALESCE(EXCLUDED.payload, import_dead_letter.payload),
+                    error_class = EXCLUDED.error_class,
+                    error_message = EXCLUDED.error_message,
+                    attempts = import_dead_letter.attempts + 1,
+                    status = CASE WHEN import_dead_letter.attempts + 1 >= :maxAttempts THEN 'EXHAUSTED' ELSE 'PENDING' END,
+                    last_failed_at = localtimestamp,
+                    next_attempt_at = localtimestamp + make_interval(secs => LEAST(:maxBackoffSeconds,
+                            :initialBackoffSeconds * power(2, import_dead_letter.attempts)))
+            """, nativeQuery = true)
+    void recordFailure(@Param("kind") String kind, @Param("itemKey") String itemKey,
+                       @Param("clientGuid") String clientGuid, @Param("agency") String agency,
+                       @Param("patientId") Long patientId, @Param("payload") String payload,
+                       @Param("errorClass") String errorClass, @Param("errorMessage") String errorMessage,
+                       @Param("maxAttempts") int maxAttempts, @Param("initialBackoffSeconds") double initialBackoffSeconds,
+                       @Param("maxBackoffSeconds") double maxBackoffSeconds);
+
+    // Записи, срок повтора которых наступил
+    @Query(value = "SELECT * FROM import_dead_letter WHERE status = 'PENDING' AND next_attempt_at <= localtimestamp " +
+            "ORDER BY next_attempt_at LIMIT :limit", nativeQuery = true)
+    List<ImportDeadLetter> findDue(@Param("limit") int limit);
+
+    // Ключи записей в статусе без загрузки содержимого: по ним прогон узнает, что запись пора снять
+    @Query("SELECT d.kind AS kind, d.itemKey AS itemKey FROM ImportDeadLetter d WHERE d.status = :status")
+    List<DeadLetterKey> findKeysByStatus(@Param("status") String status);
+
+    List<ImportDeadLetter> findByStatusOrderByLastFailedAtDesc(String status, Pageable pageable);
+
+    List<ImportDeadLetter> findAllByOrderByLastFailedAtDesc(Pageable pageable);
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM ImportDeadLetter d WHERE d.kind = :kind AND d.itemKey = :itemKey")
+    int deleteByKey(@Param("kind") String kind, @Param("itemKey") String itemKey);
+
+    interface DeadLetterKey {
+        String getKind();
+        String getItemKey();
+    }
+}
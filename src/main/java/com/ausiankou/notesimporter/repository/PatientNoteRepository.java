@@ -1,10 +1,40 @@
 package com.ausiankou.notesimporter.repository;
 
+import com.ausiankou.notesimporter.entity.CompanyUser;
 import com.ausiankou.notesimporter.entity.PatientNote;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 public interface PatientNoteRepository extends JpaRepository<PatientNote, Long> {
     Optional<PatientNote> findByOldNoteGuid(String oldNoteGuid);
+
+    // Пакетная проверка существования заметок: id, дата изменения и отпечаток, без загрузки связей
+    @Query("SELECT n.id AS id, n.oldNoteGuid AS oldNoteGuid, n.lastModifiedDateTime AS lastModifiedDateTime, " +
+            "n.contentHash AS contentHash FROM PatientNote n WHERE n.oldNoteGuid IN :guids")
+    List<ExistingNoteView> findExistingByOldNoteGuidIn(@Param("guids") Collection<String> guids);
+
+    // Обновление без предварительной загрузки сущности
+    @Transactional
+    @Modifying
+    @Query("UPDATE PatientNote n SET n.note = :note, n.lastModifiedDateTime = :modified, " +
+            "n.lastModifiedByUser = :user, n.contentHash = :contentHash WHERE n.id = :id")
+    int updateContent(@Param("id") Long id, @Param("note") String note,
+                      @Param("modified") LocalDateTime modified, @Param("user") CompanyUser user,
+                      @Param("contentHash") Long contentHash);
+
+    interface ExistingNoteView {
+        Long getId();
+        String getOldNoteGuid();
+        LocalDateTime getLastModifiedDateTime();
+        // null - заметка записана до появления отпечатков
+        Long getContentHash();
+    }
 }
@@ -6,6 +6,7 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -16,7 +17,26 @@ public interface PatientProfileRepository extends JpaRepository<PatientProfile,
     @Query("SELECT p FROM PatientProfile p WHERE :guid = ANY(STRING_TO_ARRAY(p.oldClientGuids, ','))")
     Optional<PatientProfile> findByOldClientGuid(@Param("guid") String guid);
 
-    // НОВЫЙ метод для нескольких GUID
-    @Query("SELECT p FROM PatientProfile p WHERE p.oldClientGuids IS NOT NULL")
-    List<PatientProfile> findByOldClientGuidsIn(@Param("guids") List<String> guids);
-}
\ No newline at end of file
+    /**
+     * Пары guid -> пациент для переданных guid (через запятую) среди пациентов с заданными статусами.
+     * Условие && идет по GIN-индексу patient_profile_old_client_guids_idx (db/migration),
+     * выражение в запросе должно совпадать с выражением индекса. Пробельные символы (пробелы,
+     * табуляция, переводы строки) из списка guid удаляются.
+     */
+    @Query(value = """
+            SELECT g.guid AS guid, p.id AS id, p.status_id AS statusId
+            FROM patient_profile p
+            CROSS JOIN LATERAL unnest(string_to_array(regexp_replace(p.old_client_guid, '\\s', '', 'g'), ',')) AS g(guid)
+            WHERE string_to_array(regexp_replace(p.old_client_guid, '\\s', '', 'g'), ',') && string_to_array(:guids, ',')
+              AND g.guid = ANY(string_to_array(:guids, ','))
+              AND p.status_id IN (:statuses)
+            """, nativeQuery = true)
+    List<PatientGuidView> findByOldClientGuids(@Param("guids") String guids,
+                                               @Param("statuses") Collection<Short> statuses);
+
+    interface PatientGuidView {
+        String getGuid();
+        Long getId();
+        Short getStatusId();
+    }
+}
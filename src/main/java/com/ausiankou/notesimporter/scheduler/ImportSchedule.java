@@ -0,0 +1,124 @@
+package com.ausiankou.notesimporter.scheduler;
+
+import com.ausiankou.notesimporter.service.ImportOptions;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Расписание импорта по агентствам. У каждого агентства своя пауза между опросами: прогон, нашедший
+ * в агентстве изменения, вдвое сокращает паузу, прогон без изменений - вдвое увеличивает, в пределах
+ * {@code minDelay}..{@code maxDelay}. Так активные агентства опрашиваются часто, а затихшие - редко.
+ * Агентство, все клиенты которого обработаны с ошибками, затихшим не считается: его пауза не меняется.
+ * <p>
+ * Раз в {@code maxDelay} выполняется полный обход всех клиентов: он находит новые агентства и
+ * забывает исчезнувшие. Между прогонами выдерживается пауза не меньше длительности прошлого
+ * прогона, умноженной на {@code durationFactor}: долгий прогон не запускается встык к следующему.
+ * Прогон, не получивший клиентов или прерванный, расписание не меняет и повторяется через {@code minDelay}.
+ * <p>
+ * Используется только потоком планировщика, синхронизации нет.
+ */
+public class ImportSchedule {
+    private final Duration minDelay;
+    private final Duration maxDelay;
+    private final double durationFactor;
+
+    private final Map<String, AgencySchedule> agencies = new HashMap<>();
+    // Первый прогон - полный обход: агентства еще не известны
+    private Instant nextSweepAt = Instant.MIN;
+
+    public ImportSchedule(Duration minDelay, Duration maxDelay, double durationFactor) {
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay.compareTo(minDelay) < 0 ? minDelay : maxDelay;
+        this.durationFactor = Math.max(0, durationFactor);
+    }
+
+    /**
+     * Параметры прогона на момент {@code now}: полный обход, если подошел его срок, иначе только
+     * агентства, срок опроса которых наступил.
+     *
+     * @return null, если опрашивать пока нечего
+     */
+    public ImportOptions plan(Instant now) {
+        if (!now.isBefore(nextSweepAt)) {
+            return ImportOptions.all(false);
+        }
+        Set<String> due = new HashSet<>();
+        agencies.forEach((agency, schedule) -> {
+            if (!now.isBefore(schedule.dueAt)) {
+                due.add(agency);
+            }
+        });
+        return due.isEmpty() ? null : new ImportOptions(false, due, Set.of());
+    }
+
+    /**
+     * Учитывает итог прогона, прошедшего полученный список клиентов до конца, и возвращает время следующего.
+     *
+     * @param changesByAgency созданные и обновленные заметки по агентствам прогона
+     * @param failedAgencies  агентства, все клиенты которых обработаны с ошибками
+     */
+    public Instant completed(ImportOptions options, Duration duration, Map<String, Long> changesByAgency,
+                             Set<String> failedAgencies, Instant finishedAt) {
+        Map<String, Long> changes = new HashMap<>(changesByAgency);
+        // Агентство из задания без обработанных клиентов - тоже опрос без изменений
+        options.agencies().forEach(agency -> changes.putIfAbsent(agency, 0L));
+        if (!options.isScoped()) {
+            nextSweepAt = finishedAt.plus(maxDelay);
+            agencies.keySet().retainAll(changes.keySet());
+        }
+        changes.forEach((agency, count) -> {
+            AgencySchedule schedule = agencies.computeIfAbsent(agency, a -> new AgencySchedule(minDelay));
+            if (count > 0) {
+                schedule.delay = max(minDelay, schedule.delay.dividedBy(2));
+            } else if (!failedAgencies.contains(agency)) {
+                schedule.delay = min(maxDelay, schedule.delay.multipliedBy(2));
+            }
+            schedule.dueAt = finishedAt.plus(schedule.delay);
+        });
+
+        Duration cooldown = max(minDelay, Duration.ofMillis((long) (duration.toMillis() * durationFactor)));
+        return max(finishedAt.plus(cooldown), nextDueAt());
+    }
+
+    /**
+     * Прогон не получил клиентов (старая система недоступна, у узла нет шардов) или был прерван:
+     * по нему нельзя судить о затихших агентствах, расписание не меняется, попытка через {@code minDelay}.
+     */
+    public Instant aborted(Instant finishedAt) {
+        return finishedAt.plus(minDelay);
+    }
+
+    // Ближайший срок: полный обход или опрос одного из агентств
+    public Instant nextDueAt() {
+        Instant next = nextSweepAt;
+        for (AgencySchedule schedule : agencies.values()) {
+            next = min(next, schedule.dueAt);
+        }
+        return next;
+    }
+
+    // Пауза агентства; null - агентство еще не встречалось
+    public Duration delayOf(String agency) {
+        AgencySchedule schedule = agencies.get(agency);
+        return schedule != null ? schedule.delay : null;
+    }
+
+    private static <T extends Comparable<? super T>> T min(T a, T b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private static <T extends Comparable<? super T>> T max(T a, T b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    private static final class AgencySchedule {
+        private Duration delay;
+        private Instant dueAt = Instant.MIN;
+
+        private AgencySchedule(Duration delay) {
+            this.delay = delay;
+        }
+    }
+}
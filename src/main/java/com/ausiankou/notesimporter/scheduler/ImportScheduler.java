@@ -1,27 +1,106 @@
 package com.ausiankou.notesimporter.scheduler;
 
+import com.ausiankou.notesimporter.service.ImportOptions;
+import com.ausiankou.notesimporter.service.ImportProgress;
 import com.ausiankou.notesimporter.service.NoteImportService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.time.Instant;
+
 @Slf4j
 @Component
 @RequiredArgsConstructor
+// spring.scheduling.enabled=false - импорт только по запросу (задания, бенчмарки)
+@ConditionalOnProperty(name = "spring.scheduling.enabled", havingValue = "true", matchIfMissing = true)
 public class ImportScheduler {
     private final NoteImportService noteImportService;
+    private final TaskScheduler taskScheduler;
+
+    @Value("${import.schedule.initial-delay:1m}")
+    private Duration initialDelay;
+
+    @Value("${import.schedule.min-delay:1m}")
+    private Duration minDelay;
+
+    @Value("${import.schedule.max-delay:30m}")
+    private Duration maxDelay;
+
+    // Пауза после прогона - не меньше его длительности, умноженной на этот коэффициент
+    @Value("${import.schedule.duration-factor:1.0}")
+    private double durationFactor;
+
+    private ImportSchedule schedule;
+
+    /**
+     * Прогоны не пересекаются: следующий планируется только после окончания предыдущего, на время,
+     * которое {@link ImportSchedule} выводит из длительности прогона и найденных изменений.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        schedule = new ImportSchedule(minDelay, maxDelay, durationFactor);
+        scheduleNext(Instant.now().plus(initialDelay));
+    }
 
-    //@Scheduled(cron = "0 15 1/2 * * *")
-    @Scheduled(cron = "0 * * * * *")
     public void scheduleImport() {
+        Instant next;
         try {
-            log.info("Starting scheduled import at {}", System.currentTimeMillis());
-            noteImportService.importNotes();
-            log.info("Scheduled import completed successfully");
+            next = runDueImport();
         } catch (Exception e) {
             log.error("Error during scheduled import", e);
+            next = Instant.now().plus(minDelay);
+        }
+        scheduleNext(next);
+    }
+
+    private Instant runDueImport() {
+        ImportOptions options = schedule.plan(Instant.now());
+        if (options == null) {
+            return schedule.nextDueAt();
+        }
+        log.info("Starting scheduled import {}", options.isScoped() ? "for agencies " + options.agencies() : "of all agencies");
+        ImportProgress progress = new ImportProgress();
+        if (!noteImportService.importNotes(options, progress)) {
+            // На узле идет задание импорта: попытка позже, расписание агентств не меняется
+            return Instant.now().plus(minDelay);
+        }
+        if (!progress.isCompleted()) {
+            Instant next = schedule.aborted(Instant.now());
+            log.warn("Scheduled import did not complete, next attempt at {}", next);
+            return next;
+        }
+        Instant next = schedule.completed(options, progress.getElapsed(), progress.getChangesByAgency(),
+                progress.getFailedAgencies(), Instant.now());
+        log.info("Scheduled import completed in {} s, next run at {}", progress.getElapsed().toSeconds(), next);
+        return next;
+    }
+
+    private void scheduleNext(Instant at) {
+        try {
+            taskScheduler.schedule(this::scheduleImport, at);
+        } catch (TaskRejectedException e) {
+            // Планировщик остановлен вместе с приложением
+            log.debug("Scheduled import not rescheduled: {}", e.getMessage());
+        }
+    }
+
+    // Повтор хранилища ошибок между прогонами; если идет прогон, повтор пропускается до следующего раза
+    @Scheduled(fixedDelayString = "${import.dead-letter.replay-interval:5m}",
+            initialDelayString = "${import.dead-letter.replay-interval:5m}")
+    public void scheduleDeadLetterReplay() {
+        try {
+            noteImportService.importNotes(ImportOptions.deadLetterReplay(), new ImportProgress());
+        } catch (Exception e) {
+            log.error("Error during dead letter replay", e);
         }
     }
 }
-//@Scheduled(cron = "0 * * * * *")
\ No newline at end of file
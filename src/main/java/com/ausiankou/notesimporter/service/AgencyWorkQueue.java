@@ -0,0 +1,168 @@
+package com.ausiankou.notesimporter.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Очереди работы по агентствам внутри прогона. У каждого агентства своя очередь и предел
+ * одновременно обрабатываемых элементов ({@code agencyConcurrency}), поэтому крупное или медленное
+ * агентство не занимает все потоки прогона.
+ * <p>
+ * Исполнитель {@code worker} сначала берет работу своего "домашнего" агентства (исполнители
+ * распределены по агентствам с работой по кругу), а если там пусто или агентство уперлось в предел -
+ * забирает работу агентства, у которого сейчас меньше всего элементов в работе. Когда агентство
+ * отвечает медленно, его элементы копятся в работе до предела, и освободившиеся потоки уходят
+ * к остальным агентствам.
+ * <p>
+ * Добавление блокируется, пока в очередях {@code capacity} элементов: память прогона ограничена.
+ */
+final class AgencyWorkQueue<T> {
+    private final int agencyConcurrency;
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    // Поля ниже защищены lock
+    private final Map<String, AgencyQueue<T>> queues = new HashMap<>();
+    // Агентства с непустой очередью в порядке появления
+    private final List<AgencyQueue<T>> active = new ArrayList<>();
+    private int queued;
+    private boolean closed;
+
+    /**
+     * @param agencyConcurrency предел элементов одного агентства в работе, 0 - без предела
+     * @param capacity          предел элементов в очередях, 0 - без предела
+     */
+    AgencyWorkQueue(int agencyConcurrency, int capacity) {
+        this.agencyConcurrency = agencyConcurrency > 0 ? agencyConcurrency : Integer.MAX_VALUE;
+        this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+    }
+
+    void put(String agency, T item) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (queued >= capacity) {
+                changed.await();
+            }
+            AgencyQueue<T> queue = queues.computeIfAbsent(agency, AgencyQueue::new);
+            if (queue.items.isEmpty()) {
+                active.add(queue);
+            }
+            queue.items.add(item);
+            queued++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Больше элементов не будет: исполнители разбирают оставшееся и получают null
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Следующий элемент для исполнителя; ждет, пока есть элементы, но все их агентства уперлись
+     * в предел. Взятый элемент обязательно закрывается {@link Work#done()}.
+     *
+     * @return null, если очередь закрыта и пуста
+     */
+    Work<T> take(int worker) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                if (queued == 0 && closed) {
+                    return null;
+                }
+                AgencyQueue<T> queue = pick(worker);
+                if (queue != null) {
+                    T item = queue.items.poll();
+                    if (queue.items.isEmpty()) {
+                        active.remove(queue);
+                    }
+                    queue.inFlight++;
+                    queued--;
+                    changed.signalAll();
+                    return new Work<>(this, queue, item);
+                }
+                changed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private AgencyQueue<T> pick(int worker) {
+        if (active.isEmpty()) {
+            return null;
+        }
+        AgencyQueue<T> home = active.get(worker % active.size());
+        if (home.inFlight < agencyConcurrency) {
+            return home;
+        }
+        AgencyQueue<T> stolen = null;
+        for (AgencyQueue<T> queue : active) {
+            if (queue.inFlight < agencyConcurrency && (stolen == null || queue.inFlight < stolen.inFlight)) {
+                stolen = queue;
+            }
+        }
+        return stolen;
+    }
+
+    private void done(AgencyQueue<T> queue) {
+        lock.lock();
+        try {
+            queue.inFlight--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class AgencyQueue<T> {
+        private final String agency;
+        private final ArrayDeque<T> items = new ArrayDeque<>();
+        private int inFlight;
+
+        private AgencyQueue(String agency) {
+            this.agency = agency;
+        }
+    }
+
+    // Элемент в работе: пока он не закрыт, он занимает место в пределе своего агентства
+    static final class Work<T> {
+        private final AgencyWorkQueue<T> owner;
+        private final AgencyQueue<T> queue;
+        private final T item;
+
+        private Work(AgencyWorkQueue<T> owner, AgencyQueue<T> queue, T item) {
+            this.owner = owner;
+            this.queue = queue;
+            this.item = item;
+        }
+
+        T item() {
+            return item;
+        }
+
+        String agency() {
+            return queue.agency;
+        }
+
+        void done() {
+            owner.done(queue);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.ausiankou.notesimporter.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Пакетная запись заметок для больших прогонов: строки передаются через COPY в нелогируемую
+ * таблицу patient_note_staging и затем одним upsert переносятся в patient_note.
+ * Правило "побеждает более новая дата изменения" сохраняется в условии ON CONFLICT,
+ * заметка с прежним отпечатком содержимого не переписывается.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class BulkNoteWriter {
+    private static final String COPY_SQL = "COPY patient_note_staging (batch_id, old_note_guid, patient_id, " +
+            "created_by_user_id, last_modified_by_user_id, created_date_time, last_modified_date_time, note, content_hash) " +
+            "FROM STDIN WITH (FORMAT csv)";
+
+    private static final String MERGE_SQL = """
+            WITH staged AS (
+                SELECT DISTINCT ON (old_note_guid) *
+                FROM patient_note_staging
+                WHERE batch_id = ?
+                ORDER BY old_note_guid, last_modified_date_time DESC
+            ), unchanged AS (
+                -- Более новая версия с прежним содержимым: CTE видят таблицу до вставки
+                SELECT count(*) AS unchanged
+                FROM staged s
+                JOIN patient_note n ON n.old_note_guid = s.old_note_guid
+                WHERE n.last_modified_date_time < s.last_modified_date_time
+                  AND n.content_hash = s.content_hash
+            ), upserted AS (
+                INSERT INTO patient_note (old_note_guid, patient_id, created_by_user_id, last_modified_by_user_id,
+                                          created_date_time, last_modified_date_time, note, content_hash)
+                SELECT old_note_guid, patient_id, created_by_user_id, last_modified_by_user_id,
+                       created_date_time, last_modified_date_time, note, content_hash
+                FROM staged
+                ON CONFLICT (old_note_guid) DO UPDATE
+                    SET note = EXCLUDED.note,
+                        last_modified_date_time = EXCLUDED.last_modified_date_time,
+                        last_modified_by_user_id = EXCLUDED.last_modified_by_user_id,
+                        content_hash = EXCLUDED.content_hash
+                    WHERE patient_note.last_modified_date_time < EXCLUDED.last_modified_date_time
+                      AND patient_note.content_hash IS DISTINCT FROM EXCLUDED.content_hash
+                RETURNING (xmax = 0) AS inserted
+            )
+            SELECT count(*) FILTER (WHERE inserted)     AS imported,
+                   count(*) FILTER (WHERE NOT inserted) AS updated,
+                   (SELECT unchanged FROM unchanged)    AS unchanged
+            FROM upserted
+            """;
+
+    private static final String CLEANUP_SQL = "DELETE FROM patient_note_staging WHERE batch_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${import.copy.batch-size:5000}")
+    private int batchSize;
+
+    public WriteResult write(List<NoteRow> rows) {
+        WriteResult total = WriteResult.EMPTY;
+        int size = Math.max(1, batchSize);
+        for (int from = 0; from < rows.size(); from += size) {
+            List<NoteRow> batch = rows.subList(from, Math.min(from + size, rows.size()));
+            total = total.plus(transactionTemplate.execute(status -> writeBatch(batch)));
+        }
+        return total;
+    }
+
+    private WriteResult writeBatch(List<NoteRow> batch) {
+        UUID batchId = UUID.randomUUID();
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            PGConnection pgConnection = connection.unwrap(PGConnection.class);
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new PGCopyOutputStream(pgConnection, COPY_SQL), StandardCharsets.UTF_8))) {
+                for (NoteRow row : batch) {
+                    writeRow(writer, batchId, row);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("COPY into patient_note_staging failed", e);
+            }
+            return null;
+        });
+
+        WriteResult result = jdbcTemplate.queryForObject(MERGE_SQL, (rs, rowNum) -> {
+            int imported = rs.getInt("imported");
+            int updated = rs.getInt("updated");
+            int unchanged = rs.getInt("unchanged");
+            return new WriteResult(imported, updated, unchanged, batch.size() - imported - updated - unchanged);
+        }, batchId);
+        jdbcTemplate.update(CLEANUP_SQL, batchId);
+
+        log.debug("Bulk batch {} of {} notes: {}", batchId, batch.size(), result);
+        return result;
+    }
+
+    private void writeRow(Writer writer, UUID batchId, NoteRow row) throws IOException {
+        writer.write(batchId.toString());
+        writer.write(',');
+        writeText(writer, row.oldNoteGuid());
+        writer.write(',');
+        writeValue(writer, row.patientId());
+        writer.write(',');
+        writeValue(writer, row.userId());
+        writer.write(',');
+        writeValue(writer, row.userId());
+        writer.write(',');
+        writeValue(writer, row.createdDateTime());
+        writer.write(',');
+        writeValue(writer, row.lastModifiedDateTime());
+        writer.write(',');
+        writeText(writer, row.note());
+        writer.write(',');
+        writeValue(writer, row.contentHash());
+        writer.write('\n');
+    }
+
+    // Пустое поле без кавычек в CSV означает NULL
+    private void writeValue(Writer writer, Object value) throws IOException {
+        if (value != null) {
+            writer.write(value.toString());
+        }
+    }
+
+    // Текст всегда в кавычках, чтобы пустая строка не превратилась в NULL
+    private void writeText(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    public record NoteRow(String oldNoteGuid, Long patientId, Long userId,
+                          LocalDateTime createdDateTime, LocalDateTime lastModifiedDateTime, String note,
+                          long contentHash) {
+    }
+
+    // unchanged - более новые версии с прежним содержимым, skipped - устаревшие версии и повторы guid
+    public record WriteResult(int imported, int updated, int unchanged, int skipped) {
+        public static final WriteResult EMPTY = new WriteResult(0, 0, 0, 0);
+
+        public WriteResult plus(WriteResult other) {
+            return new WriteResult(imported + other.imported, updated + other.updated,
+                    unchanged + other.unchanged, skipped + other.skipped);
+        }
+    }
+}
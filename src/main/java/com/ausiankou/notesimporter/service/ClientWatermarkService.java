@@ -0,0 +1,92 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.dto.OldClientDto;
+import com.ausiankou.notesimporter.entity.ClientImportWatermark;
+import com.ausiankou.notesimporter.repository.ClientImportWatermarkRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Водяные знаки инкрементального импорта. Для клиента запоминается максимальная дата изменения
+ * загруженных заметок, следующий прогон запрашивает только окно от нее (минус перекрытие на случай
+ * расхождения часов и поздних записей). Раз в {@code fullResyncInterval} клиент загружается полностью.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ClientWatermarkService {
+    private final ClientImportWatermarkRepository watermarkRepository;
+
+    @Value("${import.watermark.overlap:6h}")
+    private Duration overlap;
+
+    @Value("${import.full-resync-interval:7d}")
+    private Duration fullResyncInterval;
+
+    public NoteWindow resolveWindow(String clientGuid, boolean fullResync) {
+        if (fullResync) {
+            return NoteWindow.FULL;
+        }
+
+        ClientImportWatermark watermark = watermarkRepository.findById(clientGuid).orElse(null);
+        if (watermark == null || watermark.getLastFullSyncAt() == null
+                || watermark.getLastFullSyncAt().isBefore(LocalDateTime.now().minus(fullResyncInterval))) {
+            log.debug("Full resync is due for client {}", clientGuid);
+            return NoteWindow.FULL;
+        }
+
+        // У клиента без заметок отсчитываем от последней полной загрузки
+        LocalDateTime since = watermark.getLastModifiedDateTime() != null
+                ? watermark.getLastModifiedDateTime()
+                : watermark.getLastFullSyncAt();
+        LocalDate dateFrom = since.minus(overlap).toLocalDate();
+        if (dateFrom.isBefore(OldSystemClient.FULL_RANGE_FROM)) {
+            return NoteWindow.FULL;
+        }
+        return new NoteWindow(dateFrom, OldSystemClient.FULL_RANGE_TO, false, watermark);
+    }
+
+    /**
+     * Сдвигает водяной знак после успешной обработки клиента. Вызывается только если все заметки
+     * окна записаны без ошибок, иначе следующий прогон повторит то же окно.
+     */
+    public void advance(OldClientDto client, NoteWindow window, LocalDateTime maxModified) {
+        ClientImportWatermark watermark = window.watermark();
+        if (watermark == null) {
+            watermark = watermarkRepository.findById(client.getGuid()).orElseGet(() -> {
+                ClientImportWatermark created = new ClientImportWatermark();
+                created.setClientGuid(client.getGuid());
+                return created;
+            });
+        }
+
+        boolean changed = false;
+        if (maxModified != null && (watermark.getLastModifiedDateTime() == null
+                || maxModified.isAfter(watermark.getLastModifiedDateTime()))) {
+            watermark.setLastModifiedDateTime(maxModified);
+            changed = true;
+        }
+        if (window.full()) {
+            watermark.setLastFullSyncAt(LocalDateTime.now());
+            changed = true;
+        }
+        if (!changed) {
+            return;
+        }
+
+        watermark.setAgency(client.getAgency());
+        watermark.setUpdatedAt(LocalDateTime.now());
+        watermarkRepository.save(watermark);
+    }
+
+    public record NoteWindow(LocalDate dateFrom, LocalDate dateTo, boolean full, ClientImportWatermark watermark) {
+        public static final NoteWindow FULL =
+                new NoteWindow(OldSystemClient.FULL_RANGE_FROM, OldSystemClient.FULL_RANGE_TO, true, null);
+    }
+}
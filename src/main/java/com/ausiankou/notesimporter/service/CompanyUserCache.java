@@ -0,0 +1,141 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.entity.CompanyUser;
+import com.ausiankou.notesimporter.repository.CompanyUserRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.sql.PreparedStatement;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кэш пользователей по логину, живущий между прогонами. Размер ограничен, вытесняются давно не
+ * использованные записи. Неизвестные логины пачки разрешаются одним запросом к company_user и одним
+ * INSERT ... ON CONFLICT DO NOTHING для тех, кого нет, что безопасно при параллельной вставке
+ * того же логина другим потоком или узлом.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class CompanyUserCache implements MeterBinder {
+    private static final String INSERT_SQL = "INSERT INTO company_user (login) SELECT unnest(?) " +
+            "ON CONFLICT (login) DO NOTHING RETURNING id, login";
+
+    private final CompanyUserRepository companyUserRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${import.user-cache.max-size:10000}")
+    private int maxSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // LinkedHashMap в порядке доступа: самая давняя запись вытесняется первой
+    private final Map<String, CompanyUser> users = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompanyUser> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    /**
+     * Возвращает пользователей для всех переданных логинов, создавая недостающих.
+     * Пустые логины пропускаются.
+     */
+    public Map<String, CompanyUser> resolve(Collection<String> logins) {
+        Map<String, CompanyUser> result = new HashMap<>();
+        Set<String> missing = new HashSet<>();
+
+        synchronized (users) {
+            for (String login : logins) {
+                if (login == null || result.containsKey(login) || missing.contains(login)) {
+                    continue;
+                }
+                CompanyUser user = users.get(login);
+                if (user != null) {
+                    hits.increment();
+                    result.put(login, user);
+                } else {
+                    misses.increment();
+                    missing.add(login);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        Map<String, CompanyUser> loaded = new HashMap<>();
+        for (CompanyUser user : companyUserRepository.findByLoginIn(missing)) {
+            loaded.put(user.getLogin(), user);
+        }
+        missing.removeAll(loaded.keySet());
+
+        if (!missing.isEmpty()) {
+            log.info("Creating {} new users", missing.size());
+            for (CompanyUser user : insertMissing(missing)) {
+                loaded.put(user.getLogin(), user);
+            }
+            missing.removeAll(loaded.keySet());
+        }
+        if (!missing.isEmpty()) {
+            // Логины вставил параллельно кто-то другой - ON CONFLICT их не вернул
+            for (CompanyUser user : companyUserRepository.findByLoginIn(missing)) {
+                loaded.put(user.getLogin(), user);
+            }
+        }
+
+        synchronized (users) {
+            users.putAll(loaded);
+        }
+        result.putAll(loaded);
+        return result;
+    }
+
+    private List<CompanyUser> insertMissing(Set<String> logins) {
+        return jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(INSERT_SQL);
+            statement.setArray(1, connection.createArrayOf("text", logins.toArray()));
+            return statement;
+        }, (rs, rowNum) -> {
+            CompanyUser user = new CompanyUser();
+            user.setId(rs.getLong("id"));
+            user.setLogin(rs.getString("login"));
+            return user;
+        });
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        synchronized (users) {
+            return users.size();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("import.user.cache.requests", hits, LongAdder::sum)
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("import.user.cache.requests", misses, LongAdder::sum)
+                .tag("result", "miss")
+                .register(registry);
+        Gauge.builder("import.user.cache.size", this, CompanyUserCache::size)
+                .register(registry);
+    }
+}
@@ -0,0 +1,190 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.dto.OldClientDto;
+import com.ausiankou.notesimporter.dto.OldNoteDto;
+import com.ausiankou.notesimporter.entity.ImportDeadLetter;
+import com.ausiankou.notesimporter.repository.ImportDeadLetterRepository;
+import com.ausiankou.notesimporter.repository.ImportDeadLetterRepository.DeadLetterKey;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Хранилище ошибок импорта (import_dead_letter). Заметка, которую не удалось записать, и клиент,
+ * обработка которого оборвалась целиком, сохраняются с исходными данными, классом ошибки и числом
+ * попыток. Повтор ({@link ImportOptions#deadLetterReplay()}) обрабатывает только записи, срок
+ * которых наступил, а запись снимается, как только заметка или клиент обработаны без ошибок -
+ * повтором или обычным прогоном. Записи с исчерпанными попытками (EXHAUSTED) ждут разбора вручную:
+ * их не повторяют и не снимают прогоны.
+ * <p>
+ * Ошибки записи в хранилище только логируются: они не должны обрывать прогон.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class DeadLetterService {
+    public static final String NOTE = "NOTE";
+    public static final String CLIENT = "CLIENT";
+    public static final String PENDING = "PENDING";
+    public static final String EXHAUSTED = "EXHAUSTED";
+
+    private static final int MAX_ERROR_MESSAGE_LENGTH = 2000;
+
+    private final ImportDeadLetterRepository deadLetterRepository;
+    private final ObjectMapper objectMapper;
+
+    @Value("${import.dead-letter.enabled:false}")
+    private boolean enabled;
+
+    // Попыток, после которых запись ждет разбора вручную
+    @Value("${import.dead-letter.max-attempts:10}")
+    private int maxAttempts;
+
+    @Value("${import.dead-letter.initial-backoff:1m}")
+    private Duration initialBackoff;
+
+    @Value("${import.dead-letter.max-backoff:6h}")
+    private Duration maxBackoff;
+
+    // Записей на один повтор
+    @Value("${import.dead-letter.replay-batch-size:500}")
+    private int replayBatchSize;
+
+    // Ключи записей на начало прогона: ожидающие повтора и заметки, ждущие разбора вручную; пусто, если хранилище выключено
+    public PendingDeadLetters pending() {
+        if (!enabled) {
+            return PendingDeadLetters.NONE;
+        }
+        try {
+            PendingDeadLetters pending = new PendingDeadLetters();
+            for (DeadLetterKey key : deadLetterRepository.findKeysByStatus(PENDING)) {
+                (CLIENT.equals(key.getKind()) ? pending.clients : pending.notes).add(key.getItemKey());
+            }
+            for (DeadLetterKey key : deadLetterRepository.findKeysByStatus(EXHAUSTED)) {
+                if (NOTE.equals(key.getKind())) {
+                    pending.exhaustedNotes.add(key.getItemKey());
+                }
+            }
+            return pending;
+        } catch (Exception e) {
+            log.error("Could not load dead letters: {}", e.getMessage());
+            return PendingDeadLetters.NONE;
+        }
+    }
+
+    public List<ImportDeadLetter> findDue() {
+        if (!enabled) {
+            return List.of();
+        }
+        return deadLetterRepository.findDue(Math.max(1, replayBatchSize));
+    }
+
+    public List<ImportDeadLetter> list(String status, int limit) {
+        PageRequest page = PageRequest.of(0, Math.max(1, limit));
+        return status != null
+                ? deadLetterRepository.findByStatusOrderByLastFailedAtDesc(status, page)
+                : deadLetterRepository.findAllByOrderByLastFailedAtDesc(page);
+    }
+
+    public void noteFailed(OldNoteDto note, OldClientDto client, Long patientId, String errorClass, String errorMessage) {
+        if (!enabled || note.getGuid() == null) {
+            return;
+        }
+        record(NOTE, note.getGuid(), client != null ? client.getGuid() : note.getClientGuid(),
+                client != null ? client.getAgency() : null, patientId, note, errorClass, errorMessage, maxAttempts);
+    }
+
+    public void noteFailed(OldNoteDto note, OldClientDto client, Long patientId, Throwable error) {
+        noteFailed(note, client, patientId, error.getClass().getName(), error.getMessage());
+    }
+
+    // Заметка, которую повтор не исправит (например, некорректные даты), сразу ждет разбора вручную
+    public void noteRejected(OldNoteDto note, OldClientDto client, Long patientId, String errorClass, String errorMessage) {
+        if (!enabled || note.getGuid() == null) {
+            return;
+        }
+        record(NOTE, note.getGuid(), client != null ? client.getGuid() : note.getClientGuid(),
+                client != null ? client.getAgency() : null, patientId, note, errorClass, errorMessage, 1);
+    }
+
+    public void clientFailed(OldClientDto client, Throwable error) {
+        if (!enabled || client.getGuid() == null) {
+            return;
+        }
+        record(CLIENT, client.getGuid(), client.getGuid(), client.getAgency(), null, client,
+                error.getClass().getName(), error.getMessage(), maxAttempts);
+    }
+
+    // Повтор записи не состоялся (например, не читаются сохраненные данные): попытка все равно расходуется
+    public void replayFailed(ImportDeadLetter deadLetter, String errorMessage) {
+        log.warn("Replay of dead letter {} {} failed: {}", deadLetter.getKind(), deadLetter.getItemKey(), errorMessage);
+        record(deadLetter.getKind(), deadLetter.getItemKey(), deadLetter.getClientGuid(), deadLetter.getAgency(),
+                deadLetter.getPatientId(), null, IllegalStateException.class.getName(), errorMessage, maxAttempts);
+    }
+
+    // Запись обработана без ошибок
+    public void resolved(String kind, String itemKey) {
+        try {
+            deadLetterRepository.deleteByKey(kind, itemKey);
+            log.debug("Dead letter {} {} resolved", kind, itemKey);
+        } catch (Exception e) {
+            log.error("Could not resolve dead letter {} {}: {}", kind, itemKey, e.getMessage());
+        }
+    }
+
+    public OldNoteDto notePayload(ImportDeadLetter deadLetter) throws JsonProcessingException {
+        return objectMapper.readValue(deadLetter.getPayload(), OldNoteDto.class);
+    }
+
+    private void record(String kind, String itemKey, String clientGuid, String agency, Long patientId,
+                        Object payload, String errorClass, String errorMessage, int attemptsAllowed) {
+        try {
+            deadLetterRepository.recordFailure(kind, itemKey, clientGuid, agency, patientId,
+                    payload != null ? objectMapper.writeValueAsString(payload) : null, errorClass, truncate(errorMessage),
+                    Math.max(1, attemptsAllowed), initialBackoff.toMillis() / 1000d, maxBackoff.toMillis() / 1000d);
+        } catch (Exception e) {
+            log.error("Could not save dead letter {} {}: {}", kind, itemKey, e.getMessage());
+        }
+    }
+
+    private static String truncate(String message) {
+        return message != null && message.length() > MAX_ERROR_MESSAGE_LENGTH
+                ? message.substring(0, MAX_ERROR_MESSAGE_LENGTH)
+                : message;
+    }
+
+    /**
+     * Ключи записей хранилища на начало прогона. По ним прогон снимает запись, когда заметка или
+     * клиент обработаны без ошибок, не обращаясь к БД для остальных заметок и клиентов. Заметки
+     * с исчерпанными попытками прогон не снимает: их ошибка не задерживает водяной знак клиента.
+     */
+    public static final class PendingDeadLetters {
+        public static final PendingDeadLetters NONE = new PendingDeadLetters();
+
+        private final Set<String> clients = ConcurrentHashMap.newKeySet();
+        private final Set<String> notes = ConcurrentHashMap.newKeySet();
+        private final Set<String> exhaustedNotes = ConcurrentHashMap.newKeySet();
+
+        // true один раз: запись снимается только первым успешным обработчиком
+        public boolean removeClient(String clientGuid) {
+            return clientGuid != null && clients.remove(clientGuid);
+        }
+
+        public boolean removeNote(String noteGuid) {
+            return noteGuid != null && notes.remove(noteGuid);
+        }
+
+        public boolean isExhaustedNote(String noteGuid) {
+            return noteGuid != null && exhaustedNotes.contains(noteGuid);
+        }
+    }
+}
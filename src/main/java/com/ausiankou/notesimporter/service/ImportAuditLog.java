@@ -0,0 +1,325 @@
+package com.ausiankou.notesimporter.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Журнал решений импорта по каждой заметке: что сделано с заметкой (создана, обновлена,
+ * пропущена и почему, ошибка), пациент и даты заметки. Записи - JSON-строки в отдельном
+ * файле только для дописывания, с ротацией по размеру.
+ * <p>
+ * Потоки импорта только кладут запись в кольцевой буфер в памяти; в файл пачками пишет один
+ * фоновый поток. Переполненный буфер притормаживает импорт, записи не теряются; потеряны могут
+ * быть только записи, которые не удалось записать в файл (ошибка диска).
+ */
+@Component
+@Slf4j
+public class ImportAuditLog {
+    public enum Action {
+        CREATED,
+        UPDATED,
+        // Более новая версия с прежним содержимым
+        UNCHANGED,
+        // В базе такая же или более новая версия
+        OUTDATED,
+        // Повтор заметки в пачке: записывается одна, самая новая версия
+        DUPLICATE,
+        // Передана в upsert режима copy: итог по отдельной заметке не известен
+        MERGED,
+        FAILED
+    }
+
+    private static final long FULL_BUFFER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final boolean enabled;
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final long flushIntervalNanos;
+
+    // Ограниченная очередь многих писателей и одного читателя на кольцевом массиве:
+    // sequences[i] говорит, свободен слот (== позиции записи) или заполнен (== позиции + 1)
+    private final AuditRecord[] ring;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private long dequeuePosition;
+
+    private volatile Thread writerThread;
+    private volatile boolean running;
+    private Writer writer;
+    private long fileBytes;
+    private long dropped;
+
+    public ImportAuditLog(@Value("${import.audit.enabled:false}") boolean enabled,
+                          @Value("${import.audit.file:logs/import-audit.log}") Path file,
+                          @Value("${import.audit.buffer-size:65536}") int bufferSize,
+                          @Value("${import.audit.flush-interval:1s}") Duration flushInterval,
+                          @Value("${import.audit.max-file-size:100MB}") DataSize maxFileSize,
+                          @Value("${import.audit.max-files:10}") int maxFiles) {
+        this.enabled = enabled;
+        this.file = file;
+        this.maxFileBytes = maxFileSize.toBytes();
+        this.maxFiles = Math.max(1, maxFiles);
+        this.flushIntervalNanos = flushInterval.toNanos();
+        // Емкость - степень двойки, чтобы слот считался маской
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        this.ring = new AuditRecord[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        writerThread = Thread.ofPlatform().name("import-audit").daemon().start(this::runWriter);
+        log.info("Import audit log is written to {}", file.toAbsolutePath());
+    }
+
+    // Дописывает оставшиеся в буфере записи и закрывает файл
+    @PreDestroy
+    public void close() {
+        Thread thread = writerThread;
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void record(Action action, String noteGuid, Long patientId,
+                       LocalDateTime created, LocalDateTime modified) {
+        if (!enabled || !running) {
+            return;
+        }
+        AuditRecord auditRecord = new AuditRecord(System.currentTimeMillis(), action, noteGuid, patientId, created, modified);
+        while (!offer(auditRecord)) {
+            if (!running) {
+                return;
+            }
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(FULL_BUFFER_PARK_NANOS);
+        }
+    }
+
+    private boolean offer(AuditRecord auditRecord) {
+        long position = enqueuePosition.get();
+        while (true) {
+            int slot = (int) position & mask;
+            long diff = sequences.get(slot) - position;
+            if (diff == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    ring[slot] = auditRecord;
+                    sequences.lazySet(slot, position + 1);
+                    // Писатель будится каждые полбуфера записей, не дожидаясь переполнения
+                    if ((position & (mask >> 1)) == 0) {
+                        LockSupport.unpark(writerThread);
+                    }
+                    return true;
+                }
+                position = enqueuePosition.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    // Только поток записи
+    private AuditRecord poll() {
+        int slot = (int) dequeuePosition & mask;
+        if (sequences.get(slot) != dequeuePosition + 1) {
+            return null;
+        }
+        AuditRecord auditRecord = ring[slot];
+        ring[slot] = null;
+        sequences.lazySet(slot, dequeuePosition + ring.length);
+        dequeuePosition++;
+        return auditRecord;
+    }
+
+    private void runWriter() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            boolean stopping = !running;
+            int written = 0;
+            for (AuditRecord auditRecord = poll(); auditRecord != null; auditRecord = poll()) {
+                write(auditRecord, line);
+                written++;
+            }
+            if (stopping) {
+                flush();
+                break;
+            }
+            // Буфер файла сбрасывается, когда поток записей иссяк, а не после каждой пачки
+            if (written == 0) {
+                flush();
+                LockSupport.parkNanos(flushIntervalNanos);
+            }
+        }
+        closeWriter();
+        if (dropped > 0) {
+            log.error("Import audit log lost {} records because of write errors", dropped);
+        }
+    }
+
+    private void write(AuditRecord auditRecord, StringBuilder line) {
+        line.setLength(0);
+        line.append("{\"ts\":\"").append(Instant.ofEpochMilli(auditRecord.timestamp()))
+                .append("\",\"action\":\"").append(auditRecord.action().name())
+                .append("\",\"note\":");
+        appendString(line, auditRecord.noteGuid());
+        line.append(",\"patient\":").append(auditRecord.patientId())
+                .append(",\"created\":");
+        appendString(line, auditRecord.created() != null ? auditRecord.created().toString() : null);
+        line.append(",\"modified\":");
+        appendString(line, auditRecord.modified() != null ? auditRecord.modified().toString() : null);
+        line.append("}\n");
+
+        try {
+            if (writer == null || fileBytes >= maxFileBytes) {
+                rotateIfNeeded();
+            }
+            writer.append(line);
+            fileBytes += utf8Length(line);
+        } catch (IOException e) {
+            dropped++;
+            // Сообщение раз на тысячу потерянных записей, чтобы не засыпать основной лог
+            if (dropped % 1000 == 1) {
+                log.error("Import audit write to {} failed: {}", file, e.getMessage());
+            }
+            closeWriter();
+        }
+    }
+
+    private void rotateIfNeeded() throws IOException {
+        if (writer != null) {
+            closeWriter();
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        if (Files.exists(file) && Files.size(file) >= maxFileBytes) {
+            // file -> file.1 -> ... -> file.(maxFiles - 1): всего maxFiles файлов вместе с текущим,
+            // самый старый перезаписывается
+            for (int i = maxFiles - 2; i >= 1; i--) {
+                Path rotated = rotated(i);
+                if (Files.exists(rotated)) {
+                    Files.move(rotated, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (maxFiles > 1) {
+                Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(file);
+            }
+        }
+        writer = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+        fileBytes = Files.size(file);
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void flush() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            log.error("Import audit flush to {} failed: {}", file, e.getMessage());
+            closeWriter();
+        }
+    }
+
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            log.error("Import audit close of {} failed: {}", file, e.getMessage());
+        }
+        writer = null;
+    }
+
+    // Размер строки в файле (UTF-8) без кодирования: суррогатная пара - 4 байта, по 2 на символ
+    private static int utf8Length(CharSequence line) {
+        int bytes = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                bytes += 2;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private static void appendString(StringBuilder line, String value) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private record AuditRecord(long timestamp, Action action, String noteGuid, Long patientId,
+                               LocalDateTime created, LocalDateTime modified) {
+    }
+}
@@ -0,0 +1,232 @@
+package com.ausiankou.notesimporter.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Контрольные точки прогонов в таблицах import_run и import_run_client. Прогон, оборвавшийся
+ * посреди списка клиентов, при следующем запуске с теми же параметрами на этом узле продолжается:
+ * уже завершенные клиенты пропускаются. Завершения копятся в памяти и пишутся пачками по
+ * {@code batchSize} или раз в {@code flushInterval}. Завершение, не успевшее попасть в БД до падения,
+ * означает лишь повторную обработку клиента - импорт идемпотентен.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ImportCheckpointService {
+    // Порядок клиентов прогона: по нему считается курсор и ищется позиция клиента
+    public static final Comparator<String> CLIENT_ORDER = Comparator.nullsLast(Comparator.naturalOrder());
+
+    private static final String FIND_UNFINISHED_SQL = "SELECT run_id FROM import_run " +
+            "WHERE node = ? AND options_key = ? AND finished_at IS NULL " +
+            "AND started_at > now() - (? * interval '1 millisecond') ORDER BY started_at DESC LIMIT 1";
+
+    private static final String COMPLETED_CLIENTS_SQL = "SELECT client_guid FROM import_run_client WHERE run_id = ?";
+
+    private static final String START_SQL =
+            "INSERT INTO import_run (run_id, node, options_key, client_count) VALUES (?, ?, ?, ?)";
+
+    private static final String RESUME_SQL = "UPDATE import_run " +
+            "SET client_count = ?, attempts = attempts + 1, updated_at = now() WHERE run_id = ?";
+
+    // Более старые оборванные прогоны с теми же параметрами больше не продолжаются
+    private static final String ABANDON_SQL = "UPDATE import_run " +
+            "SET status = 'ABANDONED', finished_at = now(), updated_at = now() " +
+            "WHERE node = ? AND options_key = ? AND finished_at IS NULL AND run_id <> ?";
+
+    private static final String COMPLETE_CLIENT_SQL =
+            "INSERT INTO import_run_client (run_id, client_guid) VALUES (?, ?) ON CONFLICT DO NOTHING";
+
+    private static final String CURSOR_SQL =
+            "UPDATE import_run SET cursor_position = ?, updated_at = now() WHERE run_id = ?";
+
+    private static final String FINISH_SQL = "UPDATE import_run " +
+            "SET status = ?, cursor_position = ?, finished_at = now(), updated_at = now() WHERE run_id = ?";
+
+    private static final String PURGE_SQL =
+            "DELETE FROM import_run WHERE started_at < now() - (? * interval '1 millisecond')";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${import.checkpoint.enabled:false}")
+    private boolean enabled;
+
+    @Value("${import.checkpoint.node:local}")
+    private String node;
+
+    // Оборванный прогон старше этого срока не продолжается, следующий прогон начинается заново
+    @Value("${import.checkpoint.resume-window:1d}")
+    private Duration resumeWindow;
+
+    @Value("${import.checkpoint.retention:7d}")
+    private Duration retention;
+
+    @Value("${import.checkpoint.batch-size:200}")
+    private int batchSize;
+
+    @Value("${import.checkpoint.flush-interval:5s}")
+    private Duration flushInterval;
+
+    /**
+     * Начинает прогон по упорядоченному списку клиентов или продолжает оборванный прогон с теми же параметрами.
+     *
+     * @param orderedGuids guid клиентов в порядке {@link #CLIENT_ORDER}
+     */
+    public RunCheckpoint start(ImportOptions options, List<String> orderedGuids) {
+        if (!enabled) {
+            return RunCheckpoint.NONE;
+        }
+        String optionsKey = optionsKey(options);
+        jdbcTemplate.update(PURGE_SQL, retention.toMillis());
+
+        List<UUID> unfinished = jdbcTemplate.queryForList(FIND_UNFINISHED_SQL, UUID.class,
+                node, optionsKey, resumeWindow.toMillis());
+        UUID runId;
+        Set<String> completed;
+        if (unfinished.isEmpty()) {
+            runId = UUID.randomUUID();
+            completed = Set.of();
+            jdbcTemplate.update(START_SQL, runId, node, optionsKey, orderedGuids.size());
+        } else {
+            runId = unfinished.getFirst();
+            completed = new HashSet<>(jdbcTemplate.queryForList(COMPLETED_CLIENTS_SQL, String.class, runId));
+            jdbcTemplate.update(RESUME_SQL, orderedGuids.size(), runId);
+            log.info("Resuming import run {}: {} clients already completed", runId, completed.size());
+        }
+        jdbcTemplate.update(ABANDON_SQL, node, optionsKey, runId);
+        return new RunCheckpoint(this, runId, orderedGuids, completed);
+    }
+
+    private void write(UUID runId, List<String> clientGuids, int cursor) {
+        try {
+            if (!clientGuids.isEmpty()) {
+                jdbcTemplate.batchUpdate(COMPLETE_CLIENT_SQL, clientGuids.stream()
+                        .map(guid -> new Object[]{runId, guid})
+                        .toList());
+            }
+            jdbcTemplate.update(CURSOR_SQL, cursor, runId);
+        } catch (Exception e) {
+            // Контрольная точка не должна ронять импорт: в худшем случае клиенты обработаются повторно
+            log.warn("Could not save checkpoint of import run {}: {}", runId, e.getMessage());
+        }
+    }
+
+    private void finish(UUID runId, String status, int cursor) {
+        try {
+            jdbcTemplate.update(FINISH_SQL, status, cursor, runId);
+        } catch (Exception e) {
+            log.warn("Could not finish import run {}: {}", runId, e.getMessage());
+        }
+    }
+
+    // Продолжается только прогон с теми же параметрами: полнота загрузки и состав клиентов
+    private static String optionsKey(ImportOptions options) {
+        return "fullResync=" + options.fullResync()
+                + ";agencies=" + new TreeSet<>(options.agencies())
+                + ";clients=" + new TreeSet<>(options.clientGuids());
+    }
+
+    /**
+     * Контрольная точка одного прогона: какие клиенты уже завершены и буфер новых завершений.
+     */
+    public static final class RunCheckpoint {
+        public static final RunCheckpoint NONE = new RunCheckpoint(null, null, List.of(), Set.of());
+
+        private final ImportCheckpointService service;
+        private final UUID runId;
+        private final Set<String> completedBefore;
+        // Позиция клиента - двоичным поиском по упорядоченному списку, без отдельного индекса guid
+        private final List<String> orderedGuids;
+        private final BitSet done = new BitSet();
+        private List<String> buffer = new ArrayList<>();
+        private int cursor;
+        private long lastFlushAt = System.currentTimeMillis();
+
+        private RunCheckpoint(ImportCheckpointService service, UUID runId, List<String> orderedGuids,
+                              Set<String> completedBefore) {
+            this.service = service;
+            this.runId = runId;
+            this.completedBefore = completedBefore;
+            this.orderedGuids = orderedGuids;
+            if (service != null) {
+                for (int i = 0; i < orderedGuids.size(); i++) {
+                    if (completedBefore.contains(orderedGuids.get(i))) {
+                        done.set(i);
+                    }
+                }
+                cursor = done.nextClearBit(0);
+            }
+        }
+
+        public UUID getRunId() {
+            return runId;
+        }
+
+        public boolean isCompleted(String clientGuid) {
+            return completedBefore.contains(clientGuid);
+        }
+
+        // Вызывается из потоков обработки; запись в БД - вне монитора, чтобы не держать остальных
+        public void clientCompleted(String clientGuid) {
+            if (service == null) {
+                return;
+            }
+            List<String> toWrite;
+            int cursorToWrite;
+            synchronized (this) {
+                buffer.add(clientGuid);
+                int position = clientGuid != null ? Collections.binarySearch(orderedGuids, clientGuid, CLIENT_ORDER) : -1;
+                if (position >= 0) {
+                    done.set(position);
+                    cursor = done.nextClearBit(cursor);
+                }
+                if (buffer.size() < Math.max(1, service.batchSize)
+                        && System.currentTimeMillis() - lastFlushAt < service.flushInterval.toMillis()) {
+                    return;
+                }
+                toWrite = takeBuffer();
+                cursorToWrite = cursor;
+            }
+            service.write(runId, toWrite, cursorToWrite);
+        }
+
+        // Прогон прерван (остановка узла): сохраняем накопленное, прогон остается незавершенным
+        public void flush() {
+            if (service == null) {
+                return;
+            }
+            List<String> toWrite;
+            int cursorToWrite;
+            synchronized (this) {
+                toWrite = takeBuffer();
+                cursorToWrite = cursor;
+            }
+            service.write(runId, toWrite, cursorToWrite);
+        }
+
+        public void finish(String status) {
+            if (service == null) {
+                return;
+            }
+            flush();
+            int finalCursor;
+            synchronized (this) {
+                finalCursor = cursor;
+            }
+            service.finish(runId, status, finalCursor);
+        }
+
+        private List<String> takeBuffer() {
+            List<String> taken = buffer;
+            buffer = new ArrayList<>();
+            lastFlushAt = System.currentTimeMillis();
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.ausiankou.notesimporter.service;
+
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+/**
+ * Задание импорта, запущенное через API: параметры, ход прогона и состояние.
+ */
+@Getter
+public class ImportJob {
+    public enum State { QUEUED, RUNNING, COMPLETED, CANCELLED, FAILED }
+
+    private final String id = UUID.randomUUID().toString();
+    private final ImportOptions options;
+    private final ImportProgress progress = new ImportProgress();
+    private final Instant submittedAt = Instant.now();
+    private volatile State state = State.QUEUED;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile String error;
+    private volatile Future<?> future;
+
+    ImportJob(ImportOptions options) {
+        this.options = options;
+    }
+
+    public boolean isFinished() {
+        return finishedAt != null;
+    }
+
+    void submitted(Future<?> future) {
+        this.future = future;
+    }
+
+    void started() {
+        startedAt = Instant.now();
+        state = State.RUNNING;
+    }
+
+    synchronized void finish(State state, String error) {
+        if (isFinished()) {
+            return;
+        }
+        this.state = state;
+        this.error = error;
+        this.finishedAt = Instant.now();
+    }
+}
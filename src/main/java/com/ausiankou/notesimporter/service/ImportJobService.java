@@ -0,0 +1,111 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.service.ImportJob.State;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Асинхронные задания импорта. Задание ставится в очередь и сразу возвращается, прогоны
+ * выполняются по одному в отдельном потоке, а если на узле уже идет прогон (например, по
+ * расписанию), задание дожидается его окончания.
+ */
+@Service
+@Slf4j
+public class ImportJobService {
+    private final NoteImportService noteImportService;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("import-job").factory());
+    private final Map<String, ImportJob> jobs = new ConcurrentHashMap<>();
+
+    // Сколько завершенных заданий хранится для запросов статуса
+    @Value("${import.jobs.history-size:100}")
+    private int historySize;
+
+    public ImportJobService(NoteImportService noteImportService) {
+        this.noteImportService = noteImportService;
+    }
+
+    public ImportJob submit(ImportOptions options) {
+        ImportJob job = new ImportJob(options);
+        jobs.put(job.getId(), job);
+        evictFinished();
+        job.submitted(executor.submit(() -> run(job)));
+        log.info("Import job {} submitted: fullResync={}, agencies={}, clients={}",
+                job.getId(), options.fullResync(), options.agencies(), options.clientGuids());
+        return job;
+    }
+
+    public Optional<ImportJob> find(String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    public List<ImportJob> list() {
+        return jobs.values().stream()
+                .sorted(Comparator.comparing(ImportJob::getSubmittedAt).reversed())
+                .toList();
+    }
+
+    /**
+     * Задание в очереди или в ожидании чужого прогона снимается сразу. У идущего прогона
+     * новые клиенты не начинаются, начатые дорабатываются, и задание завершается как CANCELLED.
+     */
+    public Optional<ImportJob> cancel(String id) {
+        ImportJob job = jobs.get(id);
+        if (job == null) {
+            return Optional.empty();
+        }
+        job.getProgress().cancel();
+        if (!job.getProgress().hasBegun() && job.getFuture() != null && job.getFuture().cancel(true)) {
+            job.finish(State.CANCELLED, null);
+        }
+        log.info("Import job {} cancellation requested", id);
+        return Optional.of(job);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobs.values().forEach(job -> job.getProgress().cancel());
+        executor.shutdownNow();
+    }
+
+    private void run(ImportJob job) {
+        if (job.getProgress().isCancelled()) {
+            job.finish(State.CANCELLED, null);
+            return;
+        }
+        job.started();
+        try {
+            noteImportService.importNotesWhenIdle(job.getOptions(), job.getProgress());
+            job.finish(job.getProgress().isCancelled() ? State.CANCELLED : State.COMPLETED, null);
+            log.info("Import job {} finished: {}", job.getId(), job.getState());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.finish(State.CANCELLED, null);
+        } catch (Exception e) {
+            log.error("Import job {} failed", job.getId(), e);
+            job.finish(State.FAILED, e.getMessage());
+        }
+    }
+
+    private void evictFinished() {
+        int excess = jobs.size() - Math.max(1, historySize);
+        if (excess <= 0) {
+            return;
+        }
+        jobs.values().stream()
+                .filter(ImportJob::isFinished)
+                .sorted(Comparator.comparing(ImportJob::getSubmittedAt))
+                .limit(excess)
+                .forEach(job -> jobs.remove(job.getId()));
+    }
+}
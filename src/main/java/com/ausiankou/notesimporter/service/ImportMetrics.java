@@ -0,0 +1,184 @@
+package com.ausiankou.notesimporter.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Метрики импорта по фазам, публикуются через Actuator (/actuator/metrics, /actuator/prometheus).
+ * Длительности передаются в наносекундах, чтобы вызывающий код не зависел от API Micrometer.
+ */
+@Component
+public class ImportMetrics {
+    private final MeterRegistry registry;
+
+    private final Timer clientListFetch;
+    private final Timer patientIndex;
+    private final Timer noteTransform;
+    private final Timer run;
+    private final Counter notesProcessed;
+
+    private final Map<String, Timer> writeTimers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> writeCounters = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicReference<Collection<?>>> pipelineQueues = new ConcurrentHashMap<>();
+
+    private final AtomicInteger requestsInFlight = new AtomicInteger();
+    private final AtomicInteger clientsQueued = new AtomicInteger();
+    private volatile double lastRunNotesPerSecond;
+
+    public ImportMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.clientListFetch = Timer.builder("import.clients.fetch")
+                .description("Fetch of the client list from the old system")
+                .register(registry);
+        this.patientIndex = Timer.builder("import.patients.index")
+                .description("Build of the client guid -> patient index")
+                .register(registry);
+        this.noteTransform = Timer.builder("import.note.transform")
+                .description("Transform of a single old system note")
+                .register(registry);
+        this.run = Timer.builder("import.run")
+                .description("Import run duration")
+                .register(registry);
+        this.notesProcessed = Counter.builder("import.run.notes")
+                .description("Notes processed by all runs")
+                .register(registry);
+
+        Gauge.builder("import.old-system.requests.in-flight", requestsInFlight, AtomicInteger::get)
+                .description("Old system requests currently in flight")
+                .register(registry);
+        Gauge.builder("import.clients.queued", clientsQueued, AtomicInteger::get)
+                .description("Clients of the current run waiting to be processed")
+                .register(registry);
+        Gauge.builder("import.run.throughput", this, metrics -> metrics.lastRunNotesPerSecond)
+                .description("Notes per second of the last run")
+                .baseUnit("notes/s")
+                .register(registry);
+    }
+
+    public void recordClientListFetch(long nanos) {
+        clientListFetch.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordPatientIndex(long nanos) {
+        patientIndex.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Гистограмма задержек запроса заметок клиента, по ней строятся перцентили в Prometheus
+    public void recordNotesFetch(String agency, long nanos) {
+        Timer.builder("import.client.notes.fetch")
+                .description("Fetch of one client's notes")
+                .tag("agency", tagValue(agency))
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Клиент целиком: от начала загрузки до записи последней пачки
+    public void recordClientDuration(long nanos) {
+        Timer.builder("import.client.duration")
+                .description("Processing of one client from fetch start to the last written batch")
+                .publishPercentiles(0.5, 0.99)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordNoteTransform(long nanos) {
+        noteTransform.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    // В режиме jpa пишется одна заметка, в режиме copy - пачка
+    public void recordWrite(String mode, int notes, long nanos) {
+        writeTimers.computeIfAbsent(mode, key -> Timer.builder("import.notes.write")
+                        .description("Database write of a note or a note batch")
+                        .tag("mode", key)
+                        .register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+        writeCounters.computeIfAbsent(mode, key -> registry.counter("import.notes.written", "mode", key))
+                .increment(notes);
+    }
+
+    public void recordClient(String agency, NoteImportService.ImportStats clientStats) {
+        String agencyTag = tagValue(agency);
+        increment("imported", agencyTag, clientStats.getImported());
+        increment("updated", agencyTag, clientStats.getUpdated());
+        increment("skipped", agencyTag, clientStats.getSkipped());
+        increment("unchanged", agencyTag, clientStats.getSkippedUnchanged());
+        increment("errors", agencyTag, clientStats.getErrors());
+        increment("rejected", agencyTag, clientStats.getRejected());
+    }
+
+    public void recordRun(long nanos, NoteImportService.ImportStats stats) {
+        run.record(nanos, TimeUnit.NANOSECONDS);
+        long notes = stats.getProcessed();
+        notesProcessed.increment(notes);
+        lastRunNotesPerSecond = nanos > 0 ? notes * 1_000_000_000d / nanos : 0;
+    }
+
+    // Очереди конвейера текущего прогона: очередь у предела емкости - стадия за ней не успевает
+    public void trackPipelineQueue(String stage, Collection<?> queue) {
+        pipelineQueues.computeIfAbsent(stage, key -> {
+            AtomicReference<Collection<?>> current = new AtomicReference<>();
+            Gauge.builder("import.pipeline.queue.size", current, ref -> ref.get() != null ? ref.get().size() : 0)
+                    .description("Note batches waiting for a pipeline stage")
+                    .tag("stage", key)
+                    .register(registry);
+            return current;
+        }).set(queue);
+    }
+
+    // Адаптивный лимит запросов к старой системе и состояние автомата отключения
+    public void trackOldSystemLimiter(OldSystemLimiter limiter) {
+        Gauge.builder("import.old-system.limit", limiter, OldSystemLimiter::getLimit)
+                .description("Adaptive limit of concurrent old system requests")
+                .register(registry);
+        Gauge.builder("import.old-system.circuit.open", limiter, l -> l.isOpen() ? 1 : 0)
+                .description("1 while old system requests are paused by the circuit breaker")
+                .register(registry);
+    }
+
+    public void recordOldSystemRetry(String reason) {
+        registry.counter("import.old-system.retries", "reason", reason).increment();
+    }
+
+    public void recordOldSystemCircuitOpen() {
+        registry.counter("import.old-system.circuit.opened").increment();
+    }
+
+    public void requestStarted() {
+        requestsInFlight.incrementAndGet();
+    }
+
+    public void requestFinished() {
+        requestsInFlight.decrementAndGet();
+    }
+
+    public void clientsQueued(int count) {
+        clientsQueued.set(count);
+    }
+
+    public void clientStarted() {
+        clientsQueued.decrementAndGet();
+    }
+
+    private void increment(String result, String agency, int count) {
+        if (count > 0) {
+            registry.counter("import.notes", "result", result, "agency", agency).increment(count);
+        }
+    }
+
+    private static String tagValue(String value) {
+        return value != null ? value : "unknown";
+    }
+}
@@ -0,0 +1,43 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.dto.OldClientDto;
+
+import java.util.Set;
+
+/**
+ * Параметры прогона импорта. Пустые множества агентств и guid клиентов означают "без ограничения",
+ * непустые сужают прогон до перечисленных клиентов.
+ *
+ * @param fullResync        загрузить всю историю заметок, не учитывая водяные знаки клиентов
+ * @param replayDeadLetters повторить только заметки и клиентов из хранилища ошибок, срок повтора
+ *                          которых наступил ({@link DeadLetterService})
+ */
+public record ImportOptions(boolean fullResync, Set<String> agencies, Set<String> clientGuids,
+                            boolean replayDeadLetters) {
+
+    public ImportOptions {
+        agencies = agencies != null ? Set.copyOf(agencies) : Set.of();
+        clientGuids = clientGuids != null ? Set.copyOf(clientGuids) : Set.of();
+    }
+
+    public ImportOptions(boolean fullResync, Set<String> agencies, Set<String> clientGuids) {
+        this(fullResync, agencies, clientGuids, false);
+    }
+
+    public static ImportOptions all(boolean fullResync) {
+        return new ImportOptions(fullResync, Set.of(), Set.of());
+    }
+
+    public static ImportOptions deadLetterReplay() {
+        return new ImportOptions(false, Set.of(), Set.of(), true);
+    }
+
+    public boolean isScoped() {
+        return !agencies.isEmpty() || !clientGuids.isEmpty();
+    }
+
+    public boolean includes(OldClientDto client) {
+        return (agencies.isEmpty() || agencies.contains(client.getAgency()))
+                && (clientGuids.isEmpty() || clientGuids.contains(client.getGuid()));
+    }
+}
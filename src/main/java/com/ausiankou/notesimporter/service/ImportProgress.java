@@ -0,0 +1,112 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.service.NoteImportService.ImportStats;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ход одного прогона: завершенные клиенты, статистика заметок и флаг отмены. Обновляется потоками
+ * прогона и читается снаружи, например для статуса задания импорта.
+ */
+public class ImportProgress {
+    private final ImportStats stats = new ImportStats();
+    private final AtomicInteger clientsDone = new AtomicInteger();
+    private volatile int clientsTotal;
+    private volatile long startedNanos;
+    private volatile boolean begun;
+    private volatile boolean cancelled;
+    private volatile boolean completed;
+
+    // Прогон получил узел: дальше отмена только кооперативная
+    void begin() {
+        begun = true;
+    }
+
+    void start(int clientsTotal) {
+        this.clientsTotal = clientsTotal;
+        this.startedNanos = System.nanoTime();
+    }
+
+    void clientDone() {
+        clientsDone.incrementAndGet();
+    }
+
+    // Список клиентов получен и пройден до конца, без отмены и прерывания
+    void completed() {
+        completed = true;
+    }
+
+    // Новые клиенты не берутся в работу, начатые дорабатываются
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean hasBegun() {
+        return begun;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public ImportStats getStats() {
+        return stats;
+    }
+
+    public int getClientsTotal() {
+        return clientsTotal;
+    }
+
+    public int getClientsDone() {
+        return clientsDone.get();
+    }
+
+    // Агентства, клиенты которых завершены в прогоне, и созданные и обновленные заметки в каждом (в том числе 0)
+    public Map<String, Long> getChangesByAgency() {
+        Map<String, Long> changes = new HashMap<>();
+        stats.getByAgency().forEach((agency, agencyStats) ->
+                changes.put(agency, (long) agencyStats.getImported() + agencyStats.getUpdated()));
+        return changes;
+    }
+
+    // Агентства, все клиенты которых завершены в прогоне с ошибками
+    public Set<String> getFailedAgencies() {
+        Set<String> failed = new HashSet<>();
+        stats.getByAgency().forEach((agency, agencyStats) -> {
+            if (agencyStats.getClients() > 0 && agencyStats.getFailedClients() == agencyStats.getClients()) {
+                failed.add(agency);
+            }
+        });
+        return failed;
+    }
+
+    public Duration getElapsed() {
+        long started = startedNanos;
+        return started == 0 ? Duration.ZERO : Duration.ofNanos(System.nanoTime() - started);
+    }
+
+    public double getNotesPerSecond() {
+        long nanos = getElapsed().toNanos();
+        long notes = stats.getProcessed();
+        return nanos > 0 ? notes * 1_000_000_000d / nanos : 0;
+    }
+
+    // Оценка по средней длительности уже завершенных клиентов; null, пока завершенных нет
+    public Duration getEta() {
+        int done = clientsDone.get();
+        int total = clientsTotal;
+        if (done == 0 || total == 0) {
+            return null;
+        }
+        return getElapsed().multipliedBy(Math.max(0, total - done)).dividedBy(done);
+    }
+}
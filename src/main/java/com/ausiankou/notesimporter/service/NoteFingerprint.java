@@ -0,0 +1,49 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.dto.OldNoteDto;
+
+import java.time.LocalDateTime;
+
+/**
+ * Отпечаток содержимого заметки: текст, логин автора и дата создания. Дата изменения в отпечаток
+ * не входит - старая система сдвигает ее и без правки текста, и такая заметка не должна
+ * переписываться. Хэш 64-битный FNV-1a: стабилен между запусками и версиями JVM, в отличие от
+ * {@link String#hashCode()} не ограничен 32 битами.
+ */
+public final class NoteFingerprint {
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+    // Разделитель полей и маркер null: без них ("ab", "c") и ("a", "bc") давали бы один хэш
+    private static final char FIELD_SEPARATOR = '\u001f';
+    private static final char NULL_MARKER = '\u0000';
+
+    private NoteFingerprint() {
+    }
+
+    public static long of(OldNoteDto oldNote) {
+        return of(oldNote.getComments(), oldNote.getLoggedUser(), oldNote.getCreatedDateTime());
+    }
+
+    public static long of(String comments, String loggedUser, LocalDateTime created) {
+        long hash = OFFSET_BASIS;
+        hash = mix(hash, comments);
+        hash = mix(hash, loggedUser);
+        return mix(hash, created != null ? created.toString() : null);
+    }
+
+    private static long mix(long hash, String value) {
+        if (value == null) {
+            hash = mixChar(hash, NULL_MARKER);
+        } else {
+            for (int i = 0; i < value.length(); i++) {
+                hash = mixChar(hash, value.charAt(i));
+            }
+        }
+        return mixChar(hash, FIELD_SEPARATOR);
+    }
+
+    private static long mixChar(long hash, char c) {
+        hash = (hash ^ (c & 0xff)) * PRIME;
+        return (hash ^ (c >>> 8)) * PRIME;
+    }
+}
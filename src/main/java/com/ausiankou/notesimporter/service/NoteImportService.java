@@ -3,240 +3,1189 @@ package com.ausiankou.notesimporter.service;
 import com.ausiankou.notesimporter.dto.OldClientDto;
 import com.ausiankou.notesimporter.dto.OldNoteDto;
 import com.ausiankou.notesimporter.entity.CompanyUser;
+import com.ausiankou.notesimporter.entity.ImportDeadLetter;
 import com.ausiankou.notesimporter.entity.PatientNote;
 import com.ausiankou.notesimporter.entity.PatientProfile;
-import com.ausiankou.notesimporter.repository.CompanyUserRepository;
 import com.ausiankou.notesimporter.repository.PatientNoteRepository;
+import com.ausiankou.notesimporter.repository.PatientNoteRepository.ExistingNoteView;
 import com.ausiankou.notesimporter.repository.PatientProfileRepository;
-import lombok.Data;
+import com.ausiankou.notesimporter.repository.PatientProfileRepository.PatientGuidView;
+import com.ausiankou.notesimporter.service.ClientWatermarkService.NoteWindow;
+import com.ausiankou.notesimporter.service.DeadLetterService.PendingDeadLetters;
+import com.ausiankou.notesimporter.service.ImportCheckpointService.RunCheckpoint;
+import com.ausiankou.notesimporter.service.ShardLeaseService.ShardClaim;
 import lombok.RequiredArgsConstructor;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
 
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class NoteImportService {
+    private static final String WRITE_MODE_JPA = "jpa";
+    private static final String WRITE_MODE_COPY = "copy";
+    // Статусы активного пациента, заметки остальных не импортируются
+    private static final List<Short> ACTIVE_PATIENT_STATUSES = List.of((short) 200, (short) 210, (short) 230);
+
     private final OldSystemClient oldSystemClient;
     private final PatientProfileRepository patientProfileRepository;
-    private final CompanyUserRepository companyUserRepository;
     private final PatientNoteRepository patientNoteRepository;
+    private final BulkNoteWriter bulkNoteWriter;
+    private final ClientWatermarkService clientWatermarkService;
+    private final ShardLeaseService shardLeaseService;
+    private final ImportCheckpointService importCheckpointService;
+    private final DeadLetterService deadLetterService;
+    private final CompanyUserCache companyUserCache;
+    private final ImportMetrics importMetrics;
+    private final ImportAuditLog importAuditLog;
+    private final TransactionTemplate transactionTemplate;
+
+    private final ReentrantLock runLock = new ReentrantLock();
+
+    // Записи хранилища ошибок на начало текущего прогона; прогоны узла не пересекаются (runLock)
+    private volatile PendingDeadLetters deadLetters = PendingDeadLetters.NONE;
+
+    // Сколько клиентов обрабатывается одновременно (1 - последовательный режим)
+    @Value("${import.client-concurrency:1}")
+    private int clientConcurrency;
+
+    // Сколько клиентов одного агентства обрабатывается одновременно в конвейере (0 - без предела)
+    @Value("${import.agency-concurrency:0}")
+    private int agencyConcurrency;
+
+    // Сколько guid клиентов передается в одном запросе пациентов
+    @Value("${import.patient-lookup-batch-size:1000}")
+    private int patientLookupBatchSize;
+
+    // Размер пачки заметок: один запрос существующих заметок или одна COPY-пачка
+    @Value("${import.note-batch-size:1000}")
+    private int noteBatchSize;
+
+    // Разбирать ответ /notes потоково, не держа весь массив заметок клиента в памяти
+    @Value("${import.stream-notes:false}")
+    private boolean streamNotes;
+
+    // Параллелизм стадий подготовки и записи конвейера (загрузка - clientConcurrency)
+    @Value("${import.pipeline.resolve-parallelism:1}")
+    private int resolveParallelism;
+
+    @Value("${import.pipeline.write-parallelism:1}")
+    private int writeParallelism;
+
+    // Емкость очередей между стадиями, в пачках заметок
+    @Value("${import.pipeline.queue-capacity:1}")
+    private int pipelineQueueCapacity;
+
+    // Заметок на транзакцию в режиме jpa (1 - каждая запись фиксируется отдельно)
+    @Value("${import.jpa.commit-chunk-size:1}")
+    private int commitChunkSize;
+
+    // jpa - построчная запись, copy - пакетная запись через BulkNoteWriter
+    @Value("${import.write-mode:jpa}")
+    private String writeMode;
+
+    // Память на окно клиентов: клиенты окна, индекс их пациентов; 0 - все клиенты одним окном
+    @Value("${import.window.memory-budget:0}")
+    private DataSize windowMemoryBudget;
+
+    // Оценка памяти на одного клиента окна, по ней из бюджета считается размер окна
+    @Value("${import.window.client-footprint:2KB}")
+    private DataSize windowClientFootprint;
 
     // УБРАНА аннотация @Transactional с основного метода
     public void importNotes() {
+        importNotes(false);
+    }
+
+    /**
+     * @param fullResync загрузить всю историю заметок, не учитывая водяные знаки клиентов
+     */
+    public void importNotes(boolean fullResync) {
+        importNotes(ImportOptions.all(fullResync), new ImportProgress());
+    }
+
+    /**
+     * Прогон в пределах {@code options}, если на узле не идет другой прогон.
+     *
+     * @return false, если прогон не запускался: на узле уже идет импорт
+     */
+    public boolean importNotes(ImportOptions options, ImportProgress progress) {
+        // Прогоны узла не пересекаются: ни планировщик, ни ручной запуск не стартуют поверх идущего
+        if (!runLock.tryLock()) {
+            log.warn("Previous import is still running on this node, skipping");
+            return false;
+        }
+        try {
+            progress.begin();
+            run(options, progress);
+        } finally {
+            runLock.unlock();
+        }
+        return true;
+    }
+
+    // Для заданий импорта: дожидается окончания идущего прогона узла вместо пропуска
+    public void importNotesWhenIdle(ImportOptions options, ImportProgress progress) throws InterruptedException {
+        runLock.lockInterruptibly();
+        try {
+            progress.begin();
+            run(options, progress);
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    private void run(ImportOptions options, ImportProgress progress) {
+        if (options.replayDeadLetters()) {
+            replayDeadLetters(progress);
+        } else {
+            runImport(options, progress);
+        }
+    }
+
+    private void runImport(ImportOptions options, ImportProgress progress) {
         log.info("<-------------!------------->");
-        log.info("Starting notes import process");
+        log.info("Starting notes import process{}{}", options.fullResync() ? " (full resync)" : "",
+                options.isScoped() ? " for agencies " + options.agencies() + " and clients " + options.clientGuids() : "");
+
+        ShardClaim shardClaim = shardLeaseService.claimShards();
+        if (shardClaim.isEmpty()) {
+            log.info("No shards leased by this node, nothing to import");
+            return;
+        }
 
-        List<OldClientDto> oldClients = oldSystemClient.getAllClients();
-        if (oldClients.isEmpty()) {
+        long runStart = System.nanoTime();
+        // Порядок по guid постоянный: на нем строится курсор контрольной точки прогона
+        List<ClientRef> fetchedClients = fetchClientRefs(options, shardClaim);
+        importMetrics.recordClientListFetch(System.nanoTime() - runStart);
+        if (fetchedClients.isEmpty()) {
             log.warn("No clients received from old system, aborting import");
             return;
         }
-        log.info("Fetched {} clients from old system", oldClients.size());
+        log.info("Fetched {} clients from old system", fetchedClients.size());
+
+        RunCheckpoint checkpoint = importCheckpointService.start(options,
+                fetchedClients.stream().map(ClientRef::guid).toList());
+        List<ClientRef> oldClients = fetchedClients.stream()
+                .filter(client -> !checkpoint.isCompleted(client.guid()))
+                .toList();
+        if (oldClients.size() < fetchedClients.size()) {
+            log.info("Run {} resumed: {} of {} clients completed before restart", checkpoint.getRunId(),
+                    fetchedClients.size() - oldClients.size(), fetchedClients.size());
+        }
+
+        progress.start(oldClients.size());
+        ImportStats stats = progress.getStats();
+
+        importMetrics.clientsQueued(oldClients.size());
+        deadLetters = deadLetterService.pending();
+
+        ImportRun run = new ImportRun(progress, options.fullResync(), shardClaim, checkpoint);
+        try {
+            if (clientConcurrency > 1) {
+                importInPipeline(oldClients, run);
+            } else {
+                forEachClient(oldClients, run, (oldClient, patient) ->
+                        processClientSafely(oldClient, patient, run, this::writeBatch));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Import interrupted, remaining clients are not processed");
+        }
+
+        long runNanos = System.nanoTime() - runStart;
+        importMetrics.recordRun(runNanos, stats);
+        importMetrics.clientsQueued(0);
+
+        if (progress.isCancelled()) {
+            log.warn("Import cancelled after {} of {} clients", progress.getClientsDone(), oldClients.size());
+        }
+        // Прерванный остановкой узла прогон остается незавершенным и продолжится при следующем запуске
+        if (Thread.currentThread().isInterrupted()) {
+            checkpoint.flush();
+        } else {
+            checkpoint.finish(progress.isCancelled() ? "CANCELLED" : "COMPLETED");
+            if (!progress.isCancelled()) {
+                progress.completed();
+            }
+        }
+        log.info("Import completed in {} ms. Stats - Imported: {}, Updated: {}, Unchanged: {}, Skipped: {}, Errors: {}, Rejected: {}",
+                TimeUnit.NANOSECONDS.toMillis(runNanos), stats.getImported(), stats.getUpdated(),
+                stats.getSkippedUnchanged(), stats.getSkipped(), stats.getErrors(), stats.getRejected());
+    }
+
+    /**
+     * Повтор записей хранилища ошибок, срок которых наступил. Заметки записываются заново из
+     * сохраненных данных, клиенты проходят обычную обработку в прогоне, суженном до этих клиентов.
+     * Обработанные без ошибок записи снимаются, остальные получают следующую попытку с большей паузой.
+     */
+    private void replayDeadLetters(ImportProgress progress) {
+        progress.start(0);
+        List<ImportDeadLetter> due = deadLetterService.findDue();
+        if (due.isEmpty()) {
+            log.debug("No dead letters due for replay");
+            return;
+        }
+        deadLetters = deadLetterService.pending();
 
-        ImportStats stats = new ImportStats();
+        ImportStats stats = progress.getStats();
+        Set<String> clientGuids = new LinkedHashSet<>();
+        Map<Long, List<OldNoteDto>> notesByPatient = new LinkedHashMap<>();
+        for (ImportDeadLetter deadLetter : due) {
+            if (DeadLetterService.CLIENT.equals(deadLetter.getKind())) {
+                clientGuids.add(deadLetter.getItemKey());
+            } else if (deadLetter.getPatientId() == null) {
+                deadLetterService.replayFailed(deadLetter, "Dead letter has no patient");
+            } else {
+                OldNoteDto note;
+                try {
+                    note = deadLetterService.notePayload(deadLetter);
+                } catch (Exception e) {
+                    deadLetterService.replayFailed(deadLetter, "Unreadable payload: " + e.getMessage());
+                    continue;
+                }
+                if (note.hasValidTimestamps()) {
+                    notesByPatient.computeIfAbsent(deadLetter.getPatientId(), id -> new ArrayList<>()).add(note);
+                } else {
+                    // Повтор даты не исправит. В данных записей до сохранения исходных строк их нет -
+                    // тогда остается прежнее описание ошибки
+                    stats.incrementRejected();
+                    deadLetterService.noteRejected(note, null, deadLetter.getPatientId(), DateTimeParseException.class.getName(),
+                            note.getInvalidTimestamps() != null ? invalidTimestampsMessage(note) : deadLetter.getErrorMessage());
+                }
+            }
+        }
+        log.info("Replaying dead letters: {} notes of {} patients, {} clients",
+                notesByPatient.values().stream().mapToInt(List::size).sum(), notesByPatient.size(), clientGuids.size());
 
-        // Оптимизация: получаем всех пациентов за ОДИН запрос к БД
-        Map<String, PatientProfile> patientsByGuid = getPatientsByGuid(oldClients);
+        notesByPatient.forEach((patientId, notes) -> replayNotes(patientId, notes, stats));
 
-        // Кэш пользователей для уменьшения запросов к БД
-        Map<String, CompanyUser> userCache = new HashMap<>();
+        if (!clientGuids.isEmpty() && !progress.isCancelled()) {
+            runImport(new ImportOptions(false, Set.of(), clientGuids), progress);
+            // Клиент, до которого прогон не дошел (его больше нет в старой системе или шард у другого
+            // узла), тоже расходует попытку - иначе он выбирался бы каждым повтором
+            PendingDeadLetters afterRun = deadLetters;
+            if (!progress.isCancelled()) {
+                due.stream()
+                        .filter(deadLetter -> DeadLetterService.CLIENT.equals(deadLetter.getKind()))
+                        .filter(deadLetter -> afterRun.removeClient(deadLetter.getItemKey()))
+                        .forEach(deadLetter -> deadLetterService.replayFailed(deadLetter,
+                                "Client was not processed by the replay run"));
+            }
+        }
+        log.info("Dead letter replay completed. Stats - Imported: {}, Updated: {}, Unchanged: {}, Skipped: {}, Errors: {}, Rejected: {}",
+                stats.getImported(), stats.getUpdated(), stats.getSkippedUnchanged(), stats.getSkipped(), stats.getErrors(),
+                stats.getRejected());
+    }
 
-        for (OldClientDto oldClient : oldClients) {
+    private void replayNotes(Long patientId, List<OldNoteDto> notes, ImportStats stats) {
+        PatientProfile patient = new PatientProfile();
+        patient.setId(patientId);
+        try {
+            executeWrite(planWrite(notes, patient, stats), patient, stats);
+        } catch (Exception e) {
+            log.error("Error replaying {} notes for patient {}: {}", notes.size(), patientId, e.getMessage());
+            stats.addErrors(notes.size());
+            notes.forEach(note -> deadLetterService.noteFailed(note, null, patientId, e));
+        }
+    }
+
+    /**
+     * Конвейер из трех стадий: загрузка заметок из старой системы, подготовка записи (авторы,
+     * существующие заметки, решение создать/обновить/пропустить) и запись в БД. Стадии связаны
+     * ограниченными очередями пачек: если запись отстает, загрузчики блокируются на очереди и не
+     * копят заметки в памяти, а пока одни потоки ждут старую систему, другие пишут в БД.
+     * Загрузка идет на {@code clientConcurrency} виртуальных потоках, одновременные запросы к старой
+     * системе дополнительно ограничены адаптивным лимитом {@link OldSystemLimiter}.
+     */
+    private void importInPipeline(List<ClientRef> oldClients, ImportRun run) throws InterruptedException {
+        int resolvers = Math.max(1, resolveParallelism);
+        int writers = Math.max(1, writeParallelism);
+        BlockingQueue<NoteBatch> resolveQueue = new ArrayBlockingQueue<>(Math.max(1, pipelineQueueCapacity));
+        BlockingQueue<PlannedBatch> writeQueue = new ArrayBlockingQueue<>(Math.max(1, pipelineQueueCapacity));
+        importMetrics.trackPipelineQueue("resolve", resolveQueue);
+        importMetrics.trackPipelineQueue("write", writeQueue);
+        log.info("Processing clients in pipeline: fetchers={}, resolvers={}, writers={}, queueCapacity={}",
+                clientConcurrency, resolvers, writers, Math.max(1, pipelineQueueCapacity));
+
+        BatchSink toResolveStage = (progress, notes) -> {
+            progress.retain();
+            resolveQueue.put(new NoteBatch(progress, notes));
+        };
+
+        ExecutorService stages = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            List<Future<?>> writeTasks = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                writeTasks.add(stages.submit(() -> runWriteStage(writeQueue)));
+            }
+            List<Future<?>> resolveTasks = new ArrayList<>();
+            for (int i = 0; i < resolvers; i++) {
+                resolveTasks.add(stages.submit(() -> runResolveStage(resolveQueue, writeQueue)));
+            }
+
+            fetchClients(oldClients, run, toResolveStage);
+
+            // Стадия останавливается маркером конца, когда предыдущая уже отдала все пачки
+            for (int i = 0; i < resolvers; i++) {
+                resolveQueue.put(NoteBatch.END);
+            }
+            awaitStage(resolveTasks);
+            for (int i = 0; i < writers; i++) {
+                writeQueue.put(PlannedBatch.END);
+            }
+            awaitStage(writeTasks);
+        } finally {
+            stages.shutdownNow();
+        }
+    }
+
+    /**
+     * Загрузчики: clientConcurrency потоков разбирают клиентов из очередей агентств
+     * ({@link AgencyWorkQueue}), у одного агентства в работе не больше agencyConcurrency клиентов.
+     * В очередях не больше окна клиентов, следующее окно готовится, пока разбирается текущее.
+     */
+    private void fetchClients(List<ClientRef> oldClients, ImportRun run, BatchSink sink)
+            throws InterruptedException {
+        int windowSize = clientWindowSize();
+        AgencyWorkQueue<ClientWork> queue = new AgencyWorkQueue<>(Math.min(agencyConcurrency, clientConcurrency),
+                windowSize < Integer.MAX_VALUE ? windowSize : 0);
+        try (ExecutorService fetchers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clientConcurrency; i++) {
+                int worker = i;
+                fetchers.submit(() -> runFetcher(queue, worker, run, sink));
+            }
+            try {
+                forEachClient(oldClients, run, (oldClient, patient) ->
+                        queue.put(oldClient.getAgency(), new ClientWork(oldClient, patient)));
+            } finally {
+                queue.close();
+            }
+        }
+    }
+
+    private void runFetcher(AgencyWorkQueue<ClientWork> queue, int worker, ImportRun run, BatchSink sink) {
+        try {
+            for (AgencyWorkQueue.Work<ClientWork> work = queue.take(worker); work != null; work = queue.take(worker)) {
+                try {
+                    // Отмена кооперативная: клиенты в работе дорабатываются, новые не начинаются
+                    if (!run.progress().isCancelled()) {
+                        processClientSafely(work.item().client(), work.item().patient(), run, sink);
+                    }
+                } finally {
+                    work.done();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Обход клиентов прогона окнами: для окна из компактного списка восстанавливаются клиенты и
+     * строится индекс их пациентов, после окна и то и другое отпускается. В памяти одновременно
+     * только окно клиентов и клиенты в работе, сколько бы клиентов ни было в старой системе.
+     */
+    private void forEachClient(List<ClientRef> oldClients, ImportRun run, ClientTask task)
+            throws InterruptedException {
+        int windowSize = clientWindowSize();
+        if (windowSize < oldClients.size()) {
+            log.info("Processing {} clients in windows of {}", oldClients.size(), windowSize);
+        }
+        for (int from = 0, to; from < oldClients.size() && !run.progress().isCancelled(); from = to) {
+            to = from + Math.min(windowSize, oldClients.size() - from);
+            List<OldClientDto> window = oldClients.subList(from, to).stream()
+                    .map(ClientRef::toDto)
+                    .toList();
+
+            // Только активные пациенты нужных guid, пачками через индекс
+            long indexStart = System.nanoTime();
+            Map<String, PatientProfile> patientsByGuid = getPatientsByGuid(window);
+            importMetrics.recordPatientIndex(System.nanoTime() - indexStart);
+
+            for (OldClientDto oldClient : window) {
+                if (run.progress().isCancelled()) {
+                    break;
+                }
+                task.process(oldClient, patientsByGuid.get(oldClient.getGuid()));
+            }
+        }
+    }
+
+    int clientWindowSize() {
+        if (windowMemoryBudget == null || windowMemoryBudget.toBytes() <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        long footprint = windowClientFootprint != null ? Math.max(1, windowClientFootprint.toBytes()) : 1;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, windowMemoryBudget.toBytes() / footprint));
+    }
+
+    /**
+     * Клиенты прогона в порядке {@link ImportCheckpointService#CLIENT_ORDER}, только agency и guid.
+     * В режиме окон ответ старой системы разбирается потоково, полный список клиентов с остальными
+     * полями в памяти не собирается; строки agency у клиентов одного агентства общие.
+     */
+    private List<ClientRef> fetchClientRefs(ImportOptions options, ShardClaim shardClaim) {
+        List<ClientRef> clients = new ArrayList<>();
+        Map<String, String> agencies = new HashMap<>();
+        Consumer<OldClientDto> collect = client -> {
+            if (options.includes(client) && shardClaim.owns(client.getGuid())) {
+                String agency = client.getAgency() != null
+                        ? agencies.computeIfAbsent(client.getAgency(), a -> a)
+                        : null;
+                clients.add(new ClientRef(agency, client.getGuid()));
+            }
+        };
+        if (clientWindowSize() < Integer.MAX_VALUE) {
             try {
-                processClient(oldClient, patientsByGuid, userCache, stats);
+                oldSystemClient.streamClients(collect);
             } catch (Exception e) {
-                log.error("Error processing client with guid {}: {}", oldClient.getGuid(), e.getMessage());
-                stats.incrementErrors();
+                log.error("Error streaming clients from old system: {}", e.getMessage());
+                return List.of();
             }
+        } else {
+            oldSystemClient.getAllClients().forEach(collect);
         }
+        clients.sort(Comparator.comparing(ClientRef::guid, ImportCheckpointService.CLIENT_ORDER));
+        return clients;
+    }
 
-        log.info("Import completed. Stats - Imported: {}, Updated: {}, Skipped: {}, Errors: {}",
-                stats.getImported(), stats.getUpdated(), stats.getSkipped(), stats.getErrors());
+    private void runResolveStage(BlockingQueue<NoteBatch> input, BlockingQueue<PlannedBatch> output) {
+        try {
+            for (NoteBatch batch = input.take(); batch != NoteBatch.END; batch = input.take()) {
+                ClientProgress progress = batch.progress();
+                PlannedWrite write;
+                try {
+                    write = planWrite(batch.notes(), progress.patient, progress.stats);
+                } catch (Exception e) {
+                    log.error("Error preparing {} notes for patient {}: {}",
+                            batch.notes().size(), progress.patient.getId(), e.getMessage());
+                    progress.stats.addErrors(batch.notes().size());
+                    progress.failed(e);
+                    progress.release();
+                    continue;
+                }
+                output.put(new PlannedBatch(progress, write));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private Map<String, PatientProfile> getPatientsByGuid(List<OldClientDto> oldClients) {
+    private void runWriteStage(BlockingQueue<PlannedBatch> input) {
+        try {
+            for (PlannedBatch batch = input.take(); batch != PlannedBatch.END; batch = input.take()) {
+                ClientProgress progress = batch.progress();
+                try {
+                    executeWrite(batch.write(), progress.patient, progress.stats);
+                } catch (Exception e) {
+                    log.error("Error writing {} notes for patient {}: {}",
+                            batch.write().size(), progress.patient.getId(), e.getMessage());
+                    progress.stats.addErrors(batch.write().size());
+                    progress.failed(e);
+                } finally {
+                    progress.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitStage(List<Future<?>> tasks) throws InterruptedException {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                log.error("Pipeline stage failed: {}", e.getCause().getMessage());
+            }
+        }
+    }
+
+    private void processClientSafely(OldClientDto oldClient, PatientProfile patient, ImportRun run, BatchSink sink) {
+        importMetrics.clientStarted();
+        shardLeaseService.renewIfDue();
+        if (!run.shardClaim().owns(oldClient.getGuid())) {
+            log.debug("Shard of client {} is no longer leased by this node, skipping", oldClient.getGuid());
+            run.progress().clientDone();
+            return;
+        }
+
+        // Статистика клиента копится отдельно: по ней решается, можно ли сдвинуть водяной знак
+        ClientProgress progress = new ClientProgress(oldClient, patient, run);
+        try {
+            processClient(progress, run, sink);
+        } catch (Exception e) {
+            log.error("Error processing client with guid {}: {}", oldClient.getGuid(), e.getMessage());
+            progress.stats.incrementErrors();
+            progress.failed(e);
+        } finally {
+            progress.release();
+        }
+    }
+
+    /**
+     * Индекс guid -> активный пациент. Запрашивается пачками по guid клиентов через GIN-индекс,
+     * фильтр по активному статусу выполняется в БД. Пациент в индексе - ссылка только с id и статусом.
+     */
+    Map<String, PatientProfile> getPatientsByGuid(List<OldClientDto> oldClients) {
         List<String> clientGuids = oldClients.stream()
                 .map(OldClientDto::getGuid)
+                .filter(Objects::nonNull)
+                .distinct()
                 .collect(Collectors.toList());
 
         log.debug("Fetching patients for {} guids", clientGuids.size());
 
-        // Получаем всех пациентов за ОДИН запрос
-        List<PatientProfile> patients = patientProfileRepository.findByOldClientGuidsIn(clientGuids);
-
         Map<String, PatientProfile> result = new HashMap<>();
-        for (PatientProfile patient : patients) {
-            if (patient.getOldClientGuids() != null) {
-                // Обрабатываем случай, когда в oldClientGuid несколько GUID через запятую
-                String[] guids = patient.getOldClientGuids().split(",");
-                for (String guid : guids) {
-                    result.put(guid.trim(), patient);
-                }
+        Map<Long, PatientProfile> patientsById = new HashMap<>();
+        int batchSize = Math.max(1, patientLookupBatchSize);
+        for (int from = 0; from < clientGuids.size(); from += batchSize) {
+            String guids = String.join(",", clientGuids.subList(from, Math.min(from + batchSize, clientGuids.size())));
+            for (PatientGuidView view : patientProfileRepository.findByOldClientGuids(guids, ACTIVE_PATIENT_STATUSES)) {
+                // Несколько guid одного пациента указывают на один и тот же объект
+                PatientProfile patient = patientsById.computeIfAbsent(view.getId(), id -> {
+                    PatientProfile reference = new PatientProfile();
+                    reference.setId(id);
+                    reference.setStatusId(view.getStatusId());
+                    return reference;
+                });
+                result.put(view.getGuid(), patient);
             }
         }
 
-        log.debug("Found {} patients for {} guids", result.size(), clientGuids.size());
+        log.debug("Found {} active patients for {} guids", result.size(), clientGuids.size());
         return result;
     }
 
-    private void processClient(OldClientDto oldClient, Map<String, PatientProfile> patientsByGuid,
-                               Map<String, CompanyUser> userCache, ImportStats stats) {
+    private void processClient(ClientProgress progress, ImportRun run, BatchSink sink) {
+        OldClientDto oldClient = progress.client;
         log.debug("Processing client: {}", oldClient.getGuid());
 
-        PatientProfile patient = patientsByGuid.get(oldClient.getGuid());
+        PatientProfile patient = progress.patient;
         if (patient == null) {
-            log.warn("No patient found for old client guid: {}", oldClient.getGuid());
-            stats.incrementSkipped();
+            log.debug("No active patient found for old client guid: {}", oldClient.getGuid());
+            progress.stats.incrementSkipped();
             return;
         }
 
         log.debug("Found patient: id={}, status={}", patient.getId(), patient.getStatusId());
 
-        if (!isPatientActive(patient)) {
-            log.warn("Patient {} is not active (status ID: {})", patient.getId(), patient.getStatusId());
-            stats.incrementSkipped();
-            return;
+        NoteWindow window = clientWatermarkService.resolveWindow(oldClient.getGuid(), run.fullResync());
+        NoteBatcher batcher = new NoteBatcher(progress, sink);
+        long fetchStart = System.nanoTime();
+        fetchClientNotes(oldClient, window, batcher);
+        // При потоковом разборе пачки отдаются внутри запроса - это время в задержку запроса не входит
+        importMetrics.recordNotesFetch(oldClient.getAgency(), System.nanoTime() - fetchStart - batcher.getFlushNanos());
+        batcher.flush();
+
+        if (batcher.getCount() == 0) {
+            log.debug("No notes found for client {}", oldClient.getGuid());
+        } else {
+            log.debug("Fetched {} notes for patient {}", batcher.getCount(), patient.getId());
         }
 
-        List<OldNoteDto> oldNotes = oldSystemClient.getClientNotes(
-                oldClient.getAgency(),
-                oldClient.getGuid()
-        );
+        // Водяной знак сдвигается, когда записаны все пачки клиента. Окно запоминается только после
+        // успешной загрузки: ошибка запроса пробрасывается выше, и знак клиента остается прежним
+        progress.fetched(window, batcher.getMaxModified());
+    }
 
-        if (oldNotes.isEmpty()) {
-            log.info("No notes found for client {}", oldClient.getGuid());
-            return;
+    // Подготовка и запись пачки в потоке загрузки (последовательный режим)
+    private void writeBatch(ClientProgress progress, List<OldNoteDto> notes) {
+        try {
+            executeWrite(planWrite(notes, progress.patient, progress.stats), progress.patient, progress.stats);
+        } catch (Exception e) {
+            log.error("Error writing {} notes for patient {}: {}", notes.size(), progress.patient.getId(), e.getMessage());
+            progress.stats.addErrors(notes.size());
+            progress.failed(e);
         }
+    }
+
+    private PlannedWrite planWrite(List<OldNoteDto> notes, PatientProfile patient, ImportStats stats) {
+        // Все авторы пачки разрешаются одним обращением к кэшу пользователей
+        Map<String, CompanyUser> users = companyUserCache.resolve(
+                notes.stream().map(OldNoteDto::getLoggedUser).toList());
+        if (WRITE_MODE_COPY.equalsIgnoreCase(writeMode)) {
+            return planBulkWrite(notes, patient, users, stats);
+        }
+        return planJpaWrite(notes, patient, users, stats);
+    }
 
-        log.info("Processing {} notes for patient {}", oldNotes.size(), patient.getId());
+    PlannedWrite planJpaWrite(List<OldNoteDto> batch, PatientProfile patient,
+                              Map<String, CompanyUser> users, ImportStats stats) {
+        // Один запрос на пачку вместо findByOldNoteGuid на каждую заметку
+        Map<String, KnownNote> knownNotes = findKnownNotes(batch);
+        Map<String, CreateNote> creates = new LinkedHashMap<>();
+        Map<String, NoteUpdate> updates = new LinkedHashMap<>();
 
-        // Обрабатываем каждую заметку с отдельной транзакцией
+        for (OldNoteDto oldNote : batch) {
+            try {
+                planNote(oldNote, patient, knownNotes, users, creates, updates, stats);
+            } catch (Exception e) {
+                log.error("Error processing note {}: {}", oldNote.getGuid(), e.getMessage());
+                countNoteError(oldNote.getGuid(), stats);
+                audit(ImportAuditLog.Action.FAILED, oldNote, patient);
+                deadLetterService.noteFailed(oldNote, null, patient.getId(), e);
+            }
+        }
+        return new PlannedWrite(List.copyOf(creates.values()), List.copyOf(updates.values()), List.of());
+    }
+
+    private PlannedWrite planBulkWrite(List<OldNoteDto> oldNotes, PatientProfile patient,
+                                       Map<String, CompanyUser> users, ImportStats stats) {
+        List<BulkNoteWriter.NoteRow> rows = new ArrayList<>(oldNotes.size());
         for (OldNoteDto oldNote : oldNotes) {
             try {
-                processNoteInTransaction(oldNote, patient, userCache, stats);
+                long transformStart = System.nanoTime();
+                CompanyUser user = users.get(oldNote.getLoggedUser());
+                rows.add(new BulkNoteWriter.NoteRow(oldNote.getGuid(), patient.getId(),
+                        user != null ? user.getId() : null,
+                        oldNote.getCreatedDateTime(), oldNote.getModifiedDateTime(),
+                        oldNote.getComments(), NoteFingerprint.of(oldNote)));
+                importMetrics.recordNoteTransform(System.nanoTime() - transformStart);
             } catch (Exception e) {
                 log.error("Error processing note {}: {}", oldNote.getGuid(), e.getMessage());
-                stats.incrementErrors();
+                countNoteError(oldNote.getGuid(), stats);
+                audit(ImportAuditLog.Action.FAILED, oldNote, patient);
+                deadLetterService.noteFailed(oldNote, null, patient.getId(), e);
+            }
+        }
+        return new PlannedWrite(List.of(), List.of(), rows);
+    }
+
+    void executeWrite(PlannedWrite write, PatientProfile patient, ImportStats stats) {
+        if (!write.rows().isEmpty()) {
+            writeNotesInBulk(write.rows(), stats);
+        }
+        List<NoteWrite> writes = new ArrayList<>(write.creates().size() + write.updates().size());
+        writes.addAll(write.creates());
+        writes.addAll(write.updates());
+
+        int chunkSize = Math.max(1, commitChunkSize);
+        for (int from = 0; from < writes.size(); from += chunkSize) {
+            commitChunk(writes.subList(from, Math.min(from + chunkSize, writes.size())), patient, stats);
+        }
+    }
+
+    /**
+     * Записывает чанк заметок одной транзакцией. Если транзакция откатилась, чанк делится пополам
+     * и каждая половина повторяется отдельно, пока ошибочные заметки не останутся в чанках из одной
+     * записи: они считаются ошибками, остальные заметки чанка сохраняются.
+     */
+    private void commitChunk(List<NoteWrite> chunk, PatientProfile patient, ImportStats stats) {
+        try {
+            long writeStart = System.nanoTime();
+            transactionTemplate.executeWithoutResult(status -> chunk.forEach(this::execute));
+            importMetrics.recordWrite(WRITE_MODE_JPA, chunk.size(), System.nanoTime() - writeStart);
+            chunk.forEach(noteWrite -> committed(noteWrite, patient, stats));
+        } catch (Exception e) {
+            chunk.forEach(NoteImportService::rolledBack);
+            if (chunk.size() == 1) {
+                log.error("Error processing note {}: {}", chunk.getFirst().oldNoteGuid(), e.getMessage());
+                countNoteError(chunk.getFirst().oldNoteGuid(), stats);
+                audit(ImportAuditLog.Action.FAILED, chunk.getFirst(), patient);
+                deadLetterService.noteFailed(chunk.getFirst().source(), null, patient.getId(), e);
+                return;
             }
+            log.debug("Transaction of {} notes rolled back, retrying in halves: {}", chunk.size(), e.getMessage());
+            int middle = chunk.size() / 2;
+            commitChunk(chunk.subList(0, middle), patient, stats);
+            commitChunk(chunk.subList(middle, chunk.size()), patient, stats);
         }
     }
 
-    // Отдельная транзакция для каждой заметки
-    @Transactional
-    protected void processNoteInTransaction(OldNoteDto oldNote, PatientProfile patient,
-                                            Map<String, CompanyUser> userCache, ImportStats stats) {
-        processNote(oldNote, patient, userCache, stats);
+    // Ошибка пакетной записи пробрасывается: пачка целиком считается ошибкой клиента
+    private void writeNotesInBulk(List<BulkNoteWriter.NoteRow> rows, ImportStats stats) {
+        long writeStart = System.nanoTime();
+        BulkNoteWriter.WriteResult result = bulkNoteWriter.write(rows);
+        importMetrics.recordWrite(WRITE_MODE_COPY, rows.size(), System.nanoTime() - writeStart);
+        stats.addImported(result.imported());
+        stats.addUpdated(result.updated());
+        stats.addSkippedUnchanged(result.unchanged());
+        stats.addSkipped(result.skipped());
+        for (BulkNoteWriter.NoteRow row : rows) {
+            importAuditLog.record(ImportAuditLog.Action.MERGED, row.oldNoteGuid(),
+                    row.patientId(), row.createdDateTime(), row.lastModifiedDateTime());
+            resolveNote(row.oldNoteGuid());
+        }
     }
 
-    private void processNote(OldNoteDto oldNote, PatientProfile patient,
-                             Map<String, CompanyUser> userCache, ImportStats stats) {
-        CompanyUser user = getOrCreateUser(oldNote.getLoggedUser(), userCache);
-        Optional<PatientNote> existingNoteOpt = patientNoteRepository.findByOldNoteGuid(oldNote.getGuid());
+    private Map<String, KnownNote> findKnownNotes(List<OldNoteDto> notes) {
+        Set<String> guids = notes.stream()
+                .map(OldNoteDto::getGuid)
+                .collect(Collectors.toSet());
 
-        if (existingNoteOpt.isPresent()) {
-            updateNote(existingNoteOpt.get(), oldNote, user, stats);
-        } else {
-            createNote(oldNote, patient, user, stats);
+        Map<String, KnownNote> result = new HashMap<>();
+        for (ExistingNoteView view : patientNoteRepository.findExistingByOldNoteGuidIn(guids)) {
+            result.put(view.getOldNoteGuid(),
+                    new KnownNote(view.getId(), view.getLastModifiedDateTime(), view.getContentHash()));
         }
+        return result;
     }
 
-    private void updateNote(PatientNote existingNote, OldNoteDto oldNote, CompanyUser user, ImportStats stats) {
-        LocalDateTime oldNoteModified = parseDateTime(oldNote.getModifiedDateTime());
-        LocalDateTime existingNoteModified = existingNote.getLastModifiedDateTime();
+    private void fetchClientNotes(OldClientDto oldClient, NoteWindow window, Consumer<OldNoteDto> consumer) {
+        List<OldNoteDto> oldNotes;
+        importMetrics.requestStarted();
+        try {
+            if (streamNotes) {
+                oldSystemClient.streamClientNotes(oldClient.getAgency(), oldClient.getGuid(),
+                        window.dateFrom(), window.dateTo(), consumer);
+                return;
+            }
+            oldNotes = oldSystemClient.getClientNotes(oldClient.getAgency(), oldClient.getGuid(),
+                    window.dateFrom(), window.dateTo());
+        } finally {
+            importMetrics.requestFinished();
+        }
+        oldNotes.forEach(consumer);
+    }
+
+    // Решение создать/обновить/пропустить принимается в памяти по заранее загруженным данным
+    private void planNote(OldNoteDto oldNote, PatientProfile patient, Map<String, KnownNote> knownNotes,
+                          Map<String, CompanyUser> users, Map<String, CreateNote> creates,
+                          Map<String, NoteUpdate> updates, ImportStats stats) {
+        CompanyUser user = users.get(oldNote.getLoggedUser());
+        LocalDateTime oldNoteModified = oldNote.getModifiedDateTime();
+
+        // Повтор guid в той же пачке: более новая версия заменяет содержимое еще не записанной заметки
+        CreateNote pendingCreate = creates.get(oldNote.getGuid());
+        if (pendingCreate != null) {
+            PatientNote pending = pendingCreate.newNote();
+            if (oldNoteModified.isAfter(pending.getLastModifiedDateTime())) {
+                pending.setNote(oldNote.getComments());
+                pending.setLastModifiedDateTime(oldNoteModified);
+                pending.setLastModifiedByUser(user);
+                pending.setContentHash(NoteFingerprint.of(oldNote));
+                creates.put(oldNote.getGuid(), new CreateNote(pending, oldNote));
+            }
+            stats.incrementSkipped();
+            audit(ImportAuditLog.Action.DUPLICATE, oldNote, patient);
+            return;
+        }
+
+        KnownNote existingNote = knownNotes.get(oldNote.getGuid());
+        if (existingNote == null) {
+            creates.put(oldNote.getGuid(), new CreateNote(newNote(oldNote, patient, user), oldNote));
+            return;
+        }
 
+        LocalDateTime existingNoteModified = existingNote.lastModifiedDateTime();
         if (oldNoteModified.isAfter(existingNoteModified)) {
-            existingNote.setNote(oldNote.getComments());
-            existingNote.setLastModifiedDateTime(oldNoteModified);
-            existingNote.setLastModifiedByUser(user);
-            patientNoteRepository.save(existingNote);
-            stats.incrementUpdated();
-            log.info("Updated note: {}", oldNote.getGuid());
+            long contentHash = NoteFingerprint.of(oldNote);
+            knownNotes.put(oldNote.getGuid(), new KnownNote(existingNote.id(), oldNoteModified, contentHash));
+            // Старая система сдвинула дату изменения, не меняя содержимого: строка не переписывается
+            if (existingNote.contentHash() != null && existingNote.contentHash() == contentHash) {
+                NoteUpdate replaced = updates.remove(oldNote.getGuid());
+                if (replaced != null) {
+                    stats.incrementSkipped();
+                    audit(ImportAuditLog.Action.DUPLICATE, replaced, patient);
+                }
+                stats.incrementSkippedUnchanged();
+                audit(ImportAuditLog.Action.UNCHANGED, oldNote, patient);
+                resolveNote(oldNote.getGuid());
+                log.debug("Skipped note (content unchanged): {}", oldNote.getGuid());
+                return;
+            }
+            NoteUpdate replaced = updates.put(oldNote.getGuid(), new NoteUpdate(existingNote.id(), oldNote.getGuid(),
+                    oldNote.getComments(), oldNoteModified, user, contentHash, oldNote));
+            if (replaced != null) {
+                stats.incrementSkipped();
+                audit(ImportAuditLog.Action.DUPLICATE, replaced, patient);
+            }
         } else if (existingNoteModified.isAfter(oldNoteModified)) {
             stats.incrementSkipped();
+            audit(ImportAuditLog.Action.OUTDATED, oldNote, patient);
+            resolveNote(oldNote.getGuid());
             log.debug("Skipped note (newer version exists): {}", oldNote.getGuid());
         } else {
             stats.incrementSkipped();
+            audit(ImportAuditLog.Action.OUTDATED, oldNote, patient);
+            resolveNote(oldNote.getGuid());
             log.debug("Skipped note (no changes): {}", oldNote.getGuid());
         }
     }
 
-    private void createNote(OldNoteDto oldNote, PatientProfile patient, CompanyUser user, ImportStats stats) {
+    private PatientNote newNote(OldNoteDto oldNote, PatientProfile patient, CompanyUser user) {
+        long transformStart = System.nanoTime();
         PatientNote newNote = new PatientNote();
         newNote.setPatient(patient);
         newNote.setCreatedByUser(user);
         newNote.setLastModifiedByUser(user);
-        newNote.setCreatedDateTime(parseDateTime(oldNote.getCreatedDateTime()));
-        newNote.setLastModifiedDateTime(parseDateTime(oldNote.getModifiedDateTime()));
+        newNote.setCreatedDateTime(oldNote.getCreatedDateTime());
+        newNote.setLastModifiedDateTime(oldNote.getModifiedDateTime());
         newNote.setNote(oldNote.getComments());
         newNote.setOldNoteGuid(oldNote.getGuid());
+        newNote.setContentHash(NoteFingerprint.of(oldNote));
+        importMetrics.recordNoteTransform(System.nanoTime() - transformStart);
+        return newNote;
+    }
 
-        patientNoteRepository.save(newNote);
-        stats.incrementImported();
-        log.info("Created new note: {}", oldNote.getGuid());
+    private void execute(NoteWrite noteWrite) {
+        if (noteWrite instanceof CreateNote create) {
+            patientNoteRepository.save(create.newNote());
+        } else if (noteWrite instanceof NoteUpdate update) {
+            patientNoteRepository.updateContent(update.id(), update.note(), update.modified(), update.user(),
+                    update.contentHash());
+        }
     }
 
-    private CompanyUser getOrCreateUser(String login, Map<String, CompanyUser> userCache) {
-        // Пробуем получить из кэша
-        CompanyUser cachedUser = userCache.get(login);
-        if (cachedUser != null) {
-            return cachedUser;
+    // Статистика и журнал решений - только после фиксации транзакции
+    private void committed(NoteWrite noteWrite, PatientProfile patient, ImportStats stats) {
+        if (noteWrite instanceof CreateNote) {
+            stats.incrementImported();
+            audit(ImportAuditLog.Action.CREATED, noteWrite, patient);
+        } else {
+            stats.incrementUpdated();
+            audit(ImportAuditLog.Action.UPDATED, noteWrite, patient);
         }
+        resolveNote(noteWrite.oldNoteGuid());
+    }
 
-        // Ищем в БД или создаем нового
-        CompanyUser user = companyUserRepository.findByLogin(login)
-                .orElseGet(() -> {
-                    log.info("Creating new user: {}", login);
-                    CompanyUser newUser = new CompanyUser();
-                    newUser.setLogin(login);
-                    return companyUserRepository.save(newUser);
-                });
+    // Заметка из хранилища ошибок обработана: запись снимается
+    /**
+     * Ошибка одной заметки. Заметка, попытки которой в хранилище ошибок уже исчерпаны, ждет разбора
+     * вручную: она считается отложенной и не задерживает водяной знак и контрольную точку клиента,
+     * иначе клиент каждым прогоном загружался бы заново ради той же ошибки.
+     */
+    private void countNoteError(String noteGuid, ImportStats stats) {
+        if (deadLetters.isExhaustedNote(noteGuid)) {
+            stats.incrementRejected();
+        } else {
+            stats.incrementErrors();
+        }
+    }
 
-        // Сохраняем в кэш
-        userCache.put(login, user);
-        return user;
+    private void resolveNote(String noteGuid) {
+        if (deadLetters.removeNote(noteGuid)) {
+            deadLetterService.resolved(DeadLetterService.NOTE, noteGuid);
+        }
     }
 
-    private boolean isPatientActive(PatientProfile patient) {
-        int statusId = patient.getStatusId().intValue();
-        boolean isActive = statusId == 200 || statusId == 210 || statusId == 230;
+    private void audit(ImportAuditLog.Action action, OldNoteDto oldNote, PatientProfile patient) {
+        importAuditLog.record(action, oldNote.getGuid(), patient.getId(),
+                oldNote.getCreatedDateTime(), oldNote.getModifiedDateTime());
+    }
 
-        log.debug("Patient status check: id={}, status={}, isActive={}",
-                patient.getId(), statusId, isActive);
+    private void audit(ImportAuditLog.Action action, NoteWrite noteWrite, PatientProfile patient) {
+        if (noteWrite instanceof CreateNote create) {
+            importAuditLog.record(action, create.oldNoteGuid(), patient.getId(),
+                    create.newNote().getCreatedDateTime(), create.newNote().getLastModifiedDateTime());
+        } else if (noteWrite instanceof NoteUpdate update) {
+            importAuditLog.record(action, update.oldNoteGuid(), patient.getId(), null, update.modified());
+        }
+    }
 
-        return isActive;
+    // После отката id, выданный базой при вставке, недействителен: повтор должен снова вставить заметку
+    private static void rolledBack(NoteWrite noteWrite) {
+        if (noteWrite instanceof CreateNote create) {
+            create.newNote().setId(null);
+        }
     }
 
-    private LocalDateTime parseDateTime(String dateTimeStr) {
-        try {
+    // Описание ошибки с исходными строками дат - для разбора записи хранилища ошибок вручную
+    private static String invalidTimestampsMessage(OldNoteDto note) {
+        return "Invalid timestamps: " + (note.getInvalidTimestamps() != null ? note.getInvalidTimestamps() : "missing");
+    }
+
+    /**
+     * Копит заметки клиента в пачки по {@code noteBatchSize} и отдает каждую пачку дальше по мере
+     * поступления, так что в потоке загрузки одновременно находится не больше одной пачки клиента.
+     */
+    private final class NoteBatcher implements Consumer<OldNoteDto> {
+        private final ClientProgress progress;
+        private final BatchSink sink;
+        private List<OldNoteDto> batch = new ArrayList<>();
+        private int count;
+        private LocalDateTime maxModified;
+        private long flushNanos;
+
+        private NoteBatcher(ClientProgress progress, BatchSink sink) {
+            this.progress = progress;
+            this.sink = sink;
+        }
+
+        @Override
+        public void accept(OldNoteDto oldNote) {
+            count++;
+            // Заметка без корректных дат - ошибка: подставленная дата сдвинула бы водяной знак
+            if (!oldNote.hasValidTimestamps()) {
+                String message = invalidTimestampsMessage(oldNote);
+                log.error("Skipping note {}: {}", oldNote.getGuid(), message);
+                // Повтор дату не исправит: заметка отложена, водяной знак клиента сдвигается без нее
+                progress.stats.incrementRejected();
+                audit(ImportAuditLog.Action.FAILED, oldNote, progress.patient);
+                deadLetterService.noteRejected(oldNote, progress.client, progress.patient.getId(),
+                        DateTimeParseException.class.getName(), message);
+                return;
+            }
+            batch.add(oldNote);
+            LocalDateTime modified = oldNote.getModifiedDateTime();
+            if (maxModified == null || modified.isAfter(maxModified)) {
+                maxModified = modified;
+            }
+            if (batch.size() >= Math.max(1, noteBatchSize)) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            long flushStart = System.nanoTime();
+            List<OldNoteDto> notes = batch;
+            batch = new ArrayList<>();
+            try {
+                sink.accept(progress, notes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Import interrupted, {} notes for patient {} are not written", notes.size(), progress.patient.getId());
+                progress.stats.addErrors(notes.size());
+                progress.failed(e);
+            } finally {
+                flushNanos += System.nanoTime() - flushStart;
+            }
+        }
+
+        private int getCount() { return count; }
+        private long getFlushNanos() { return flushNanos; }
+        private LocalDateTime getMaxModified() { return maxModified; }
+    }
+
+    /**
+     * Клиент на пути через конвейер. Клиент завершен, когда закончилась загрузка и записаны все
+     * его пачки: только тогда известно, были ли ошибки и можно ли сдвинуть водяной знак.
+     */
+    private final class ClientProgress {
+        private final OldClientDto client;
+        private final PatientProfile patient;
+        private final ImportRun run;
+        private final ImportStats stats = new ImportStats();
+        // Загрузка клиента плюс его пачки, еще не прошедшие конвейер
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final long startNanos = System.nanoTime();
+        private NoteWindow window;
+        private LocalDateTime maxModified;
+        // Ошибка, оборвавшая обработку клиента или целой пачки: клиент попадает в хранилище ошибок
+        private volatile Exception failure;
+
+        private ClientProgress(OldClientDto client, PatientProfile patient, ImportRun run) {
+            this.client = client;
+            this.patient = patient;
+            this.run = run;
+        }
+
+        private void fetched(NoteWindow window, LocalDateTime maxModified) {
+            this.window = window;
+            this.maxModified = maxModified;
+        }
+
+        private void retain() {
+            pending.incrementAndGet();
+        }
+
+        private void failed(Exception e) {
+            failure = e;
+        }
+
+        private void release() {
+            if (pending.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        private void complete() {
             try {
-                return LocalDateTime.parse(dateTimeStr, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-            } catch (DateTimeParseException e) {
-                return LocalDateTime.parse(dateTimeStr, DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+                if (window != null && failure == null && stats.getErrors() == 0) {
+                    clientWatermarkService.advance(client, window, maxModified);
+                }
+                // Клиент с ошибками при продолжении прогона обрабатывается заново
+                if (stats.getErrors() == 0) {
+                    run.checkpoint().clientCompleted(client.getGuid());
+                }
+            } catch (Exception e) {
+                log.error("Error saving watermark of client {}: {}", client.getGuid(), e.getMessage());
+                stats.incrementErrors();
+                failure = e;
+            } finally {
+                // Ошибки отдельных заметок сохранены по заметкам, запись клиента снимается
+                boolean pendingClient = deadLetters.removeClient(client.getGuid());
+                if (failure != null) {
+                    deadLetterService.clientFailed(client, failure);
+                } else if (pendingClient) {
+                    deadLetterService.resolved(DeadLetterService.CLIENT, client.getGuid());
+                }
+                run.progress().getStats().add(client.getAgency(), stats);
+                run.progress().clientDone();
+                importMetrics.recordClient(client.getAgency(), stats);
+                importMetrics.recordClientDuration(System.nanoTime() - startNanos);
             }
-        } catch (DateTimeParseException e) {
-            log.error("Error parsing datetime '{}', using current time", dateTimeStr);
-            return LocalDateTime.now();
         }
     }
 
-    @Data
+    // Передача пачки заметок клиента дальше: запись на месте или в очередь конвейера
+    @FunctionalInterface
+    private interface BatchSink {
+        void accept(ClientProgress progress, List<OldNoteDto> notes) throws InterruptedException;
+    }
+
+    // Обработка одного клиента окна; patient - null, если активного пациента нет
+    @FunctionalInterface
+    private interface ClientTask {
+        void process(OldClientDto oldClient, PatientProfile patient) throws InterruptedException;
+    }
+
+    // Клиент окна в очереди своего агентства
+    private record ClientWork(OldClientDto client, PatientProfile patient) {
+    }
+
+    // Клиент в списке прогона: только то, что нужно для запроса заметок
+    private record ClientRef(String agency, String guid) {
+        OldClientDto toDto() {
+            OldClientDto client = new OldClientDto();
+            client.setAgency(agency);
+            client.setGuid(guid);
+            return client;
+        }
+    }
+
+    // Общее состояние одного прогона, разделяемое потоками обработки клиентов
+    private record ImportRun(ImportProgress progress, boolean fullResync, ShardClaim shardClaim,
+                             RunCheckpoint checkpoint) {
+    }
+
+    // Пачка заметок на входе стадии подготовки
+    private record NoteBatch(ClientProgress progress, List<OldNoteDto> notes) {
+        private static final NoteBatch END = new NoteBatch(null, List.of());
+    }
+
+    // Подготовленная пачка на входе стадии записи
+    private record PlannedBatch(ClientProgress progress, PlannedWrite write) {
+        private static final PlannedBatch END = new PlannedBatch(null, null);
+    }
+
+    // Что записать для пачки: новые заметки и обновления (jpa) или строки для COPY (copy)
+    record PlannedWrite(List<CreateNote> creates, List<NoteUpdate> updates, List<BulkNoteWriter.NoteRow> rows) {
+        int size() {
+            return creates.size() + updates.size() + rows.size();
+        }
+    }
+
+    // Одна запись в БД в режиме jpa; source - заметка старой системы для хранилища ошибок
+    sealed interface NoteWrite permits CreateNote, NoteUpdate {
+        String oldNoteGuid();
+
+        OldNoteDto source();
+    }
+
+    record CreateNote(PatientNote newNote, OldNoteDto source) implements NoteWrite {
+        @Override
+        public String oldNoteGuid() {
+            return newNote.getOldNoteGuid();
+        }
+    }
+
+    record NoteUpdate(Long id, String oldNoteGuid, String note, LocalDateTime modified, CompanyUser user,
+                      long contentHash, OldNoteDto source) implements NoteWrite {
+    }
+
+    // Уже сохраненная заметка: достаточно id, даты изменения и отпечатка для решения об обновлении
+    private record KnownNote(Long id, LocalDateTime lastModifiedDateTime, Long contentHash) {
+    }
+
+    // Счетчики атомарные: статистику обновляют несколько потоков одновременно
+    @ToString
     public static class ImportStats {
-        private int imported;
-        private int updated;
-        private int skipped;
-        private int errors;
-
-        public void incrementImported() { imported++; }
-        public void incrementUpdated() { updated++; }
-        public void incrementSkipped() { skipped++; }
-        public void incrementErrors() { errors++; }
+        // Итоги клиентов по агентствам; заполняется только у статистики прогона
+        @ToString.Exclude
+        private final Map<String, ImportStats> byAgency = new ConcurrentHashMap<>();
+        private final AtomicInteger imported = new AtomicInteger();
+        private final AtomicInteger updated = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        // Более новые версии заметок с прежним содержимым: запись не выполнялась
+        private final AtomicInteger skippedUnchanged = new AtomicInteger();
+        private final AtomicInteger errors = new AtomicInteger();
+        // Отложенные для разбора вручную (некорректные даты, исчерпанные попытки): в отличие от ошибок
+        // не задерживают водяной знак клиента
+        private final AtomicInteger rejected = new AtomicInteger();
+        // Клиенты, итоги которых сложены сюда (add(agency, client)), и из них - с ошибками
+        private final AtomicInteger clients = new AtomicInteger();
+        private final AtomicInteger failedClients = new AtomicInteger();
+
+        public void incrementImported() { imported.incrementAndGet(); }
+        public void incrementUpdated() { updated.incrementAndGet(); }
+        public void incrementSkipped() { skipped.incrementAndGet(); }
+        public void incrementSkippedUnchanged() { skippedUnchanged.incrementAndGet(); }
+        public void incrementErrors() { errors.incrementAndGet(); }
+        public void incrementRejected() { rejected.incrementAndGet(); }
+
+        public void addImported(int count) { imported.addAndGet(count); }
+        public void addUpdated(int count) { updated.addAndGet(count); }
+        public void addSkipped(int count) { skipped.addAndGet(count); }
+        public void addSkippedUnchanged(int count) { skippedUnchanged.addAndGet(count); }
+        public void addErrors(int count) { errors.addAndGet(count); }
+
+        public void add(ImportStats other) {
+            addImported(other.getImported());
+            addUpdated(other.getUpdated());
+            addSkipped(other.getSkipped());
+            addSkippedUnchanged(other.getSkippedUnchanged());
+            addErrors(other.getErrors());
+            rejected.addAndGet(other.getRejected());
+        }
+
+        // Итоги клиента: в общие счетчики и в счетчики его агентства
+        public void add(String agency, ImportStats client) {
+            addClient(client);
+            if (agency != null) {
+                byAgency.computeIfAbsent(agency, a -> new ImportStats()).addClient(client);
+            }
+        }
+
+        private void addClient(ImportStats client) {
+            add(client);
+            clients.incrementAndGet();
+            if (client.getErrors() > 0) {
+                failedClients.incrementAndGet();
+            }
+        }
+
+        public Map<String, ImportStats> getByAgency() {
+            return Collections.unmodifiableMap(byAgency);
+        }
+
+        public int getImported() { return imported.get(); }
+        public int getUpdated() { return updated.get(); }
+        public int getSkipped() { return skipped.get(); }
+        public int getSkippedUnchanged() { return skippedUnchanged.get(); }
+        public int getErrors() { return errors.get(); }
+        public int getRejected() { return rejected.get(); }
+        public int getClients() { return clients.get(); }
+        public int getFailedClients() { return failedClients.get(); }
+
+        // Заметки, по которым принято решение (без ошибок)
+        public long getProcessed() {
+            return (long) getImported() + getUpdated() + getSkippedUnchanged() + getSkipped();
+        }
     }
 }
\ No newline at end of file
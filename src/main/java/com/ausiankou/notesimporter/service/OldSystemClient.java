@@ -2,29 +2,65 @@ package com.ausiankou.notesimporter.service;
 
 import com.ausiankou.notesimporter.dto.OldClientDto;
 import com.ausiankou.notesimporter.dto.OldNoteDto;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class OldSystemClient {
+    // Полный диапазон дат, который старая система принимает в запросе заметок
+    public static final LocalDate FULL_RANGE_FROM = LocalDate.of(2000, 1, 1);
+    public static final LocalDate FULL_RANGE_TO = LocalDate.of(2030, 12, 31);
+
     @Value("${old.system.api.base-url}")
     private String oldSystemBaseUrl;
 
+    // Попыток на запрос при перегрузке старой системы, включая первую
+    @Value("${import.old-system.retry.max-attempts:3}")
+    private int retryMaxAttempts;
+
+    @Value("${import.old-system.retry.initial-backoff:500ms}")
+    private Duration retryInitialBackoff;
+
+    @Value("${import.old-system.retry.max-backoff:10s}")
+    private Duration retryMaxBackoff;
+
     private final RestTemplate restTemplate;
+    private final ObjectMapper objectMapper;
+    private final OldSystemLimiter oldSystemLimiter;
+    private final ImportMetrics importMetrics;
 
     public List<OldClientDto> getAllClients() {
         try {
             String url = oldSystemBaseUrl + "/clients";
-            OldClientDto[] clients = restTemplate.postForObject(url, null, OldClientDto[].class);
+            OldClientDto[] clients = call("Fetch of clients", () -> true,
+                    permit -> restTemplate.postForObject(url, null, OldClientDto[].class));
             List<OldClientDto> result = clients != null ? Arrays.asList(clients) : Collections.emptyList();
             log.info("Successfully fetched {} clients from old system", result.size());
             return result;
@@ -35,28 +71,226 @@ public class OldSystemClient {
     }
 
     public List<OldNoteDto> getClientNotes(String agency, String clientGuid) {
+        return getClientNotes(agency, clientGuid, FULL_RANGE_FROM, FULL_RANGE_TO);
+    }
+
+    /**
+     * Заметки клиента за период. Ответ 404 означает отсутствие заметок. Перегрузка старой системы
+     * (5xx, 429, сетевые ошибки) повторяется с паузой, остальные ошибки и последняя неудачная
+     * попытка пробрасываются вызывающему: пустой список вместо ошибки выглядел бы как клиент без
+     * заметок, и водяной знак клиента сдвинулся бы мимо непрочитанных заметок.
+     */
+    public List<OldNoteDto> getClientNotes(String agency, String clientGuid, LocalDate dateFrom, LocalDate dateTo) {
+        String url = oldSystemBaseUrl + "/notes";
+        Map<String, String> request = Map.of(
+                "agency", agency,
+                "clientGuid", clientGuid,
+                "dateFrom", dateFrom.toString(),
+                "dateTo", dateTo.toString()
+        );
+
+        log.debug("Requesting notes for agency: {}, clientGuid: {}, from {} to {}",
+                agency, clientGuid, dateFrom, dateTo);
         try {
-            String url = oldSystemBaseUrl + "/notes";
-            Map<String, String> request = Map.of(
-                    "agency", agency,
-                    "clientGuid", clientGuid,
-                    "dateFrom", "2000-01-01",
-                    "dateTo", "2030-12-31"
-            );
-
-            log.debug("Requesting notes for agency: {}, clientGuid: {}", agency, clientGuid);
-            OldNoteDto[] notes = restTemplate.postForObject(url, request, OldNoteDto[].class);
+            OldNoteDto[] notes = call("Fetch of notes for client " + clientGuid, () -> true,
+                    permit -> restTemplate.postForObject(url, request, OldNoteDto[].class));
             List<OldNoteDto> result = notes != null ? Arrays.asList(notes) : Collections.emptyList();
             log.debug("Found {} notes for client {}", result.size(), clientGuid);
             return result;
-
         } catch (HttpClientErrorException.NotFound e) {
-            log.warn("No notes found for client {} (agency: {})", clientGuid, agency);
-            return Collections.emptyList();
-        } catch (Exception e) {
-            log.error("Error fetching notes for client {} (agency: {}): {}",
-                    clientGuid, agency, e.getMessage());
+            log.debug("No notes found for client {} (agency: {})", clientGuid, agency);
             return Collections.emptyList();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Потоковый вариант {@link #getAllClients()}: клиенты разбираются по одному и сразу передаются
+     * в {@code consumer}, весь массив в памяти не держится. В отличие от списочного метода ошибки
+     * не глотаются - часть клиентов к этому моменту уже могла быть обработана.
+     *
+     * @return количество переданных клиентов
+     */
+    public int streamClients(Consumer<OldClientDto> consumer) {
+        String url = oldSystemBaseUrl + "/clients";
+        CountingConsumer<OldClientDto> counting = new CountingConsumer<>(consumer);
+        Integer count = call("Stream of clients", counting::isEmpty,
+                permit -> restTemplate.execute(url, HttpMethod.POST, jsonRequest(null), response -> {
+                    permit.responded();
+                    return readArray(response.getBody(), OldClientDto.class, counting);
+                }));
+        log.info("Successfully streamed {} clients from old system", count);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * Потоковый вариант {@link #getClientNotes(String, String, LocalDate, LocalDate)}. Ответ 404
+     * означает отсутствие заметок, остальные ошибки пробрасываются вызывающему. Запрос повторяется,
+     * только если ни одна заметка еще не передана в {@code consumer}.
+     *
+     * @return количество переданных заметок
+     */
+    public int streamClientNotes(String agency, String clientGuid, LocalDate dateFrom, LocalDate dateTo,
+                                 Consumer<OldNoteDto> consumer) {
+        String url = oldSystemBaseUrl + "/notes";
+        Map<String, String> request = Map.of(
+                "agency", agency,
+                "clientGuid", clientGuid,
+                "dateFrom", dateFrom.toString(),
+                "dateTo", dateTo.toString()
+        );
+
+        log.debug("Streaming notes for agency: {}, clientGuid: {}, from {} to {}",
+                agency, clientGuid, dateFrom, dateTo);
+        CountingConsumer<OldNoteDto> counting = new CountingConsumer<>(consumer);
+        try {
+            // Задержкой ответа считается время до заголовков: разбор тела ждет запись в БД
+            Integer count = call("Stream of notes for client " + clientGuid, counting::isEmpty,
+                    permit -> restTemplate.execute(url, HttpMethod.POST, jsonRequest(request), response -> {
+                        permit.responded();
+                        return readArray(response.getBody(), OldNoteDto.class, counting);
+                    }));
+            log.debug("Streamed {} notes for client {}", count, clientGuid);
+            return count != null ? count : 0;
+        } catch (HttpClientErrorException.NotFound e) {
+            log.debug("No notes found for client {} (agency: {})", clientGuid, agency);
+            return 0;
+        }
+    }
+
+    /**
+     * Запрос через {@link OldSystemLimiter} с повторами при перегрузке старой системы. Пауза перед
+     * повтором растет экспоненциально от {@code retryInitialBackoff} до {@code retryMaxBackoff},
+     * случайная половина паузы разводит повторы одновременно упавших запросов.
+     */
+    private <T> T call(String operation, BooleanSupplier retryable, OldSystemCall<T> request) {
+        int attempts = Math.max(1, retryMaxAttempts);
+        for (int attempt = 1; ; attempt++) {
+            OldSystemLimiter.Permit permit = acquirePermit(operation);
+            try {
+                T result = request.execute(permit);
+                permit.success();
+                return result;
+            } catch (RestClientException e) {
+                String reason = overloadReason(e);
+                if (reason == null) {
+                    permit.neutral();
+                    throw e;
+                }
+                permit.overloaded(reason);
+                if (attempt >= attempts || !retryable.getAsBoolean()) {
+                    throw e;
+                }
+                long backoffMillis = backoffMillis(attempt);
+                importMetrics.recordOldSystemRetry(reason);
+                log.warn("{} failed ({}), retry {} of {} in {} ms",
+                        operation, e.getMessage(), attempt, attempts - 1, backoffMillis);
+                sleep(operation, backoffMillis);
+            } finally {
+                // Ошибки вне RestTemplate (например, в consumer) не говорят о нагрузке на старую систему
+                permit.neutral();
+            }
+        }
+    }
+
+    // null - ошибка не связана с перегрузкой старой системы и не повторяется
+    private static String overloadReason(RestClientException e) {
+        if (e instanceof HttpServerErrorException serverError) {
+            return String.valueOf(serverError.getStatusCode().value());
+        }
+        if (e instanceof HttpClientErrorException.TooManyRequests) {
+            return "429";
+        }
+        // Сетевые ошибки и таймауты; ошибка разбора JSON при повторе не исчезнет
+        if (e instanceof ResourceAccessException && !(e.getCause() instanceof JsonProcessingException)) {
+            return "io";
+        }
+        return null;
+    }
+
+    private long backoffMillis(int attempt) {
+        long cap = Math.min(retryMaxBackoff.toMillis(), retryInitialBackoff.toMillis() << Math.min(attempt - 1, 20));
+        long half = Math.max(1, cap / 2);
+        return half + ThreadLocalRandom.current().nextLong(half);
+    }
+
+    private OldSystemLimiter.Permit acquirePermit(String operation) {
+        try {
+            return oldSystemLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(operation + " interrupted while waiting for the old system", e);
+        }
+    }
+
+    private static void sleep(String operation, long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(operation + " interrupted while waiting to retry", e);
+        }
+    }
+
+    private RequestCallback jsonRequest(Object body) {
+        RequestCallback bodyCallback = restTemplate.httpEntityCallback(body);
+        return request -> {
+            request.getHeaders().setAccept(List.of(MediaType.APPLICATION_JSON));
+            bodyCallback.doWithRequest(request);
+        };
+    }
+
+    /**
+     * Разбор JSON-массива на уровне токенов: в памяти только текущий элемент. Массив читается до
+     * закрывающей скобки: элемент не-объект и оборванный ответ - ошибка, а не короткий результат,
+     * иначе водяной знак клиента сдвинулся бы мимо непрочитанных заметок.
+     */
+    <T> int readArray(InputStream body, Class<T> type, Consumer<T> consumer) throws IOException {
+        try (JsonParser parser = objectMapper.createParser(body)) {
+            JsonToken token = parser.nextToken();
+            if (token == null || token == JsonToken.VALUE_NULL) {
+                return 0;
+            }
+            if (token != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "Expected JSON array from old system but got " + token);
+            }
+
+            ObjectReader reader = objectMapper.readerFor(type);
+            int count = 0;
+            for (JsonToken element = parser.nextToken(); element != JsonToken.END_ARRAY; element = parser.nextToken()) {
+                // Оборванный ответ Jackson сообщает сам (JsonEOFException), здесь - чужие элементы массива
+                if (element != JsonToken.START_OBJECT) {
+                    throw new JsonParseException(parser, "Expected JSON object from old system but got " + element
+                            + " after " + count + " elements");
+                }
+                consumer.accept(reader.readValue(parser));
+                count++;
+            }
+            return count;
+        }
+    }
+
+    @FunctionalInterface
+    private interface OldSystemCall<T> {
+        T execute(OldSystemLimiter.Permit permit);
+    }
+
+    // Считает переданные элементы: после первого переданного элемента потоковый запрос не повторяется
+    private static final class CountingConsumer<T> implements Consumer<T> {
+        private final Consumer<T> delegate;
+        private int count;
+
+        private CountingConsumer(Consumer<T> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void accept(T item) {
+            count++;
+            delegate.accept(item);
+        }
+
+        private boolean isEmpty() {
+            return count == 0;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.ausiankou.notesimporter.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ограничитель запросов к старой системе: адаптивный лимит одновременных запросов и автомат
+ * отключения (circuit breaker).
+ * <p>
+ * Лимит подбирается по схеме AIMD: каждый успешный запрос быстрее {@code latencyThreshold}
+ * увеличивает лимит на 1/limit (примерно +1 за "круг" запросов), а перегрузка - ошибка 5xx/429,
+ * таймаут или медленный ответ - умножает его на {@code backoffRatio}. Одна волна перегрузки
+ * снижает лимит один раз: учитываются только запросы, начатые после предыдущего снижения.
+ * <p>
+ * После {@code failureThreshold} неудачных попыток подряд автомат размыкается: новые запросы
+ * ждут в {@link #acquire()} (прогон встает на паузу), затем проходит один пробный запрос. Пока
+ * старая система не отвечает пробным запросам, пауза удваивается до {@code maxOpenDuration}.
+ */
+@Component
+@Slf4j
+public class OldSystemLimiter {
+    private final ImportMetrics importMetrics;
+    private final double minLimit;
+    private final double maxLimit;
+    private final double backoffRatio;
+    private final long latencyThresholdNanos;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final long maxOpenNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    // Поля ниже защищены lock
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseNanos = System.nanoTime();
+    private int consecutiveFailures;
+    private long currentOpenNanos;
+    private long openUntilNanos;
+    private boolean open;
+    private boolean probeInFlight;
+
+    public OldSystemLimiter(ImportMetrics importMetrics,
+                            @Value("${import.old-system.limiter.initial-limit:4}") int initialLimit,
+                            @Value("${import.old-system.limiter.min-limit:1}") int minLimit,
+                            @Value("${import.old-system.max-in-flight:1}") int maxLimit,
+                            @Value("${import.old-system.limiter.backoff-ratio:0.7}") double backoffRatio,
+                            @Value("${import.old-system.limiter.latency-threshold:10s}") Duration latencyThreshold,
+                            @Value("${import.old-system.breaker.failure-threshold:10}") int failureThreshold,
+                            @Value("${import.old-system.breaker.open-duration:30s}") Duration openDuration,
+                            @Value("${import.old-system.breaker.max-open-duration:5m}") Duration maxOpenDuration) {
+        this.importMetrics = importMetrics;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.minLimit = Math.min(Math.max(1, minLimit), this.maxLimit);
+        this.backoffRatio = backoffRatio;
+        this.latencyThresholdNanos = latencyThreshold.toNanos();
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = openDuration.toNanos();
+        this.maxOpenNanos = Math.max(openNanos, maxOpenDuration.toNanos());
+        this.currentOpenNanos = openNanos;
+        this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+        importMetrics.trackOldSystemLimiter(this);
+    }
+
+    /**
+     * Ждет свободного места в лимите и замкнутого автомата. Полученное разрешение обязательно
+     * закрывается одним из методов {@link Permit}.
+     */
+    public Permit acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (open) {
+                    long remaining = openUntilNanos - now;
+                    // После паузы проходит один пробный запрос, остальные ждут его результата
+                    if (remaining <= 0 && !probeInFlight) {
+                        probeInFlight = true;
+                        inFlight++;
+                        return new Permit(now, true);
+                    }
+                    if (remaining > 0) {
+                        changed.awaitNanos(remaining);
+                    } else {
+                        changed.await();
+                    }
+                } else if (inFlight < (int) limit) {
+                    inFlight++;
+                    return new Permit(now, false);
+                } else {
+                    changed.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return open;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onSuccess(Permit permit, long latencyNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            consecutiveFailures = 0;
+            if (permit.probe) {
+                probeInFlight = false;
+                open = false;
+                currentOpenNanos = openNanos;
+                log.info("Old system responded to probe request, resuming with limit {}", (int) limit);
+            }
+            if (latencyNanos > latencyThresholdNanos) {
+                decrease(permit, "slow response " + TimeUnit.NANOSECONDS.toMillis(latencyNanos) + " ms");
+            } else {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onOverload(Permit permit, String reason) {
+        lock.lock();
+        try {
+            inFlight--;
+            consecutiveFailures++;
+            decrease(permit, reason);
+            if (permit.probe) {
+                probeInFlight = false;
+                currentOpenNanos = Math.min(maxOpenNanos, currentOpenNanos * 2);
+                openCircuit(reason);
+            } else if (!open && consecutiveFailures >= failureThreshold) {
+                openCircuit(reason);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ответ, ничего не говорящий о нагрузке на старую систему (например, 400 или 404)
+    private void onNeutral(Permit permit) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (permit.probe) {
+                probeInFlight = false;
+                open = false;
+                currentOpenNanos = openNanos;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease(Permit permit, String reason) {
+        if (permit.startNanos - lastDecreaseNanos < 0) {
+            return;
+        }
+        double previous = limit;
+        limit = Math.max(minLimit, limit * backoffRatio);
+        lastDecreaseNanos = System.nanoTime();
+        if ((int) previous != (int) limit) {
+            log.warn("Old system overloaded ({}), reducing request limit {} -> {}", reason, (int) previous, (int) limit);
+        }
+    }
+
+    private void openCircuit(String reason) {
+        open = true;
+        openUntilNanos = System.nanoTime() + currentOpenNanos;
+        importMetrics.recordOldSystemCircuitOpen();
+        log.error("Old system is failing ({}, {} failures in a row), pausing requests for {} s",
+                reason, consecutiveFailures, TimeUnit.NANOSECONDS.toSeconds(currentOpenNanos));
+    }
+
+    /**
+     * Разрешение на один запрос. Время ответа считается от выдачи разрешения до
+     * {@link #responded()} (для потоковых ответов - до получения заголовков) или до закрытия.
+     */
+    public final class Permit {
+        private final long startNanos;
+        private final boolean probe;
+        private long respondedNanos;
+        private boolean closed;
+
+        private Permit(long startNanos, boolean probe) {
+            this.startNanos = startNanos;
+            this.probe = probe;
+        }
+
+        public void responded() {
+            if (respondedNanos == 0) {
+                respondedNanos = System.nanoTime();
+            }
+        }
+
+        public void success() {
+            if (close()) {
+                long end = respondedNanos != 0 ? respondedNanos : System.nanoTime();
+                onSuccess(this, end - startNanos);
+            }
+        }
+
+        public void overloaded(String reason) {
+            if (close()) {
+                onOverload(this, reason);
+            }
+        }
+
+        public void neutral() {
+            if (close()) {
+                onNeutral(this);
+            }
+        }
+
+        private boolean close() {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            return true;
+        }
+    }
+}
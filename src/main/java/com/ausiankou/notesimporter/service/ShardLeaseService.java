@@ -0,0 +1,222 @@
+package com.ausiankou.notesimporter.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Распределение клиентов между репликами. Клиенты делятся на {@code shardCount} шардов по хешу guid,
+ * узел арендует шарды в таблице import_shard_lease и импортирует только своих клиентов. Аренда
+ * продлевается во время прогона и истекает через {@code leaseTtl}, если узел умер, после чего шард
+ * забирает другой узел.
+ * <p>
+ * Живые узлы отмечаются в import_node (heartbeat), в том числе между прогонами и еще до первой
+ * аренды. Доля узла считается по списку живых узлов: шарды делятся между ними поровну, каждый
+ * узел отдает шарды сверх своей доли и добирает свободные до нее. Так новая реплика получает
+ * свою часть шардов, а шарды умершей расходятся по остальным.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ShardLeaseService {
+    private static final String HEARTBEAT_SQL = "INSERT INTO import_node (node_id, alive_until) " +
+            "VALUES (?, now() + (? * interval '1 millisecond')) " +
+            "ON CONFLICT (node_id) DO UPDATE SET alive_until = EXCLUDED.alive_until";
+
+    private static final String LIVE_NODES_SQL =
+            "SELECT node_id FROM import_node WHERE alive_until > now() ORDER BY node_id";
+
+    private static final String LEAVE_SQL = "DELETE FROM import_node WHERE node_id = ?";
+
+    private static final String RENEW_SQL = "UPDATE import_shard_lease " +
+            "SET lease_until = now() + (? * interval '1 millisecond'), updated_at = now() " +
+            "WHERE owner = ? AND lease_until > now() RETURNING shard_id";
+
+    // Строка блокируется на время ON CONFLICT, поэтому два узла не получат один шард
+    private static final String CLAIM_SQL = "INSERT INTO import_shard_lease (shard_id, owner, lease_until) " +
+            "VALUES (?, ?, now() + (? * interval '1 millisecond')) " +
+            "ON CONFLICT (shard_id) DO UPDATE SET owner = EXCLUDED.owner, lease_until = EXCLUDED.lease_until, " +
+            "updated_at = now() WHERE import_shard_lease.lease_until <= now() RETURNING shard_id";
+
+    private static final String RELEASE_SQL =
+            "UPDATE import_shard_lease SET lease_until = now(), updated_at = now() WHERE owner = ? AND shard_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${import.cluster.enabled:false}")
+    private boolean enabled;
+
+    @Value("${import.cluster.shard-count:64}")
+    private int shardCount;
+
+    @Value("${import.cluster.lease-ttl:5m}")
+    private Duration leaseTtl;
+
+    private final String nodeId = nodeName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+
+    private volatile Set<Integer> ownedShards = Set.of();
+    private volatile long lastRenewedAt;
+
+    /**
+     * Отмечает узел живым, продлевает свои аренды, отдает шарды сверх доли узла и добирает
+     * свободные до нее.
+     */
+    public synchronized ShardClaim claimShards() {
+        if (!enabled) {
+            return ShardClaim.ALL;
+        }
+        rebalance();
+        return new ShardClaim(this);
+    }
+
+    /**
+     * То же распределение между прогонами: узел с редкими прогонами не считается умершим, а узлы
+     * отдают лишние шарды новой реплике, не дожидаясь своего прогона. Интервал меньше leaseTtl.
+     */
+    @Scheduled(fixedDelayString = "${import.cluster.heartbeat-interval:1m}",
+            initialDelayString = "${import.cluster.heartbeat-interval:1m}")
+    public void heartbeat() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                rebalance();
+            }
+        } catch (Exception e) {
+            log.warn("Shard heartbeat of node {} failed: {}", nodeId, e.getMessage());
+        }
+    }
+
+    private void rebalance() {
+        long ttl = leaseTtl.toMillis();
+        jdbcTemplate.update(HEARTBEAT_SQL, nodeId, ttl);
+        List<String> liveNodes = jdbcTemplate.queryForList(LIVE_NODES_SQL, String.class);
+        int nodes = Math.max(1, liveNodes.size());
+        int rank = liveNodes.indexOf(nodeId);
+        if (rank < 0) {
+            // Отметка узла уже истекла по часам БД: считаем его последним
+            nodes = liveNodes.size() + 1;
+            rank = liveNodes.size();
+        }
+        // Доли в сумме дают ровно shardCount: каждый узел может набрать свою, не отнимая чужую
+        int fairShare = shardCount / nodes + (rank < shardCount % nodes ? 1 : 0);
+
+        Set<Integer> owned = new TreeSet<>(renew());
+
+        // Пришли новые узлы - отдаем лишние шарды, их подберут на следующем распределении
+        Iterator<Integer> extra = owned.iterator();
+        int keep = 0;
+        while (extra.hasNext()) {
+            Integer shard = extra.next();
+            if (++keep > fairShare) {
+                jdbcTemplate.update(RELEASE_SQL, nodeId, shard);
+                extra.remove();
+            }
+        }
+
+        List<Integer> candidates = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            if (!owned.contains(shard)) {
+                candidates.add(shard);
+            }
+        }
+        // Случайный порядок снижает конкуренцию узлов за одни и те же строки
+        Collections.shuffle(candidates);
+        for (Integer shard : candidates) {
+            if (owned.size() >= fairShare) {
+                break;
+            }
+            owned.addAll(jdbcTemplate.queryForList(CLAIM_SQL, Integer.class, shard, nodeId, ttl));
+        }
+
+        if (!owned.equals(ownedShards)) {
+            log.info("Node {} holds {} of {} shards (nodes: {}): {}", nodeId, owned.size(), shardCount, nodes, owned);
+        }
+        ownedShards = Set.copyOf(owned);
+        lastRenewedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Продлевает аренды, если с последнего продления прошла треть срока. Вызывается по ходу прогона.
+     */
+    public void renewIfDue() {
+        if (!enabled || System.currentTimeMillis() - lastRenewedAt < leaseTtl.toMillis() / 3) {
+            return;
+        }
+        synchronized (this) {
+            if (System.currentTimeMillis() - lastRenewedAt < leaseTtl.toMillis() / 3) {
+                return;
+            }
+            jdbcTemplate.update(HEARTBEAT_SQL, nodeId, leaseTtl.toMillis());
+            Set<Integer> renewed = Set.copyOf(renew());
+            if (!renewed.containsAll(ownedShards)) {
+                log.warn("Node {} lost shard leases, owned now: {}", nodeId, renewed);
+            }
+            ownedShards = renewed;
+            lastRenewedAt = System.currentTimeMillis();
+        }
+    }
+
+    // При остановке узла шарды сразу освобождаются для остальных, узел выходит из числа живых
+    @PreDestroy
+    public synchronized void releaseAll() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            jdbcTemplate.update(LEAVE_SQL, nodeId);
+            for (Integer shard : ownedShards) {
+                jdbcTemplate.update(RELEASE_SQL, nodeId, shard);
+            }
+            log.info("Node {} released shards {}", nodeId, ownedShards);
+        } catch (Exception e) {
+            log.warn("Could not release shard leases of node {}: {}", nodeId, e.getMessage());
+        } finally {
+            ownedShards = Set.of();
+        }
+    }
+
+    private List<Integer> renew() {
+        return jdbcTemplate.queryForList(RENEW_SQL, Integer.class, leaseTtl.toMillis(), nodeId);
+    }
+
+    // Клиент без guid относится к шарду 0: как и в одиночном режиме, он доходит до обработки, а не роняет прогон
+    private boolean owns(String clientGuid) {
+        return ownedShards.contains(Math.floorMod(Objects.hashCode(clientGuid), shardCount));
+    }
+
+    private static String nodeName() {
+        String host = System.getenv("HOSTNAME");
+        return host != null && !host.isBlank() ? host : "node";
+    }
+
+    /**
+     * Шарды, арендованные узлом на текущий прогон. Проверка идет по актуальному набору аренд,
+     * поэтому клиенты потерянного посреди прогона шарда пропускаются.
+     */
+    public static final class ShardClaim {
+        public static final ShardClaim ALL = new ShardClaim(null);
+
+        private final ShardLeaseService service;
+
+        private ShardClaim(ShardLeaseService service) {
+            this.service = service;
+        }
+
+        public boolean owns(String clientGuid) {
+            return service == null || service.owns(clientGuid);
+        }
+
+        public boolean isEmpty() {
+            return service != null && service.ownedShards.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.ausiankou.notesimporter.service;
+
+import com.ausiankou.notesimporter.dto.OldClientDto;
+import com.fasterxml.jackson.core.JsonGenerator;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Имитатор старой системы для нагрузочных прогонов (профиль simulator). Набор данных
+ * детерминирован по {@code seed}: N клиентов в M агентствах, число заметок клиента - по
+ * экспоненциальному распределению со средним {@code notesMean}, длина комментария - равномерно
+ * в заданных пределах, даты в обоих форматах старой системы. Заметки не хранятся, а генерируются
+ * заново на каждый запрос, поэтому объем набора ограничен только временем прогона.
+ * Задержка ответа и доля ошибок настраиваются.
+ */
+@Service
+@Profile("simulator")
+@Slf4j
+public class SimulatedOldSystem {
+    private static final DateTimeFormatter SPACE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final LocalDateTime BASE_DATE = LocalDateTime.of(2015, 1, 1, 0, 0);
+    // Заметки создаются на интервале около десяти лет от BASE_DATE
+    private static final int CREATED_RANGE_MINUTES = 10 * 365 * 24 * 60;
+    private static final int MODIFIED_RANGE_MINUTES = 90 * 24 * 60;
+
+    @Value("${simulator.seed:42}")
+    private long seed;
+
+    @Value("${simulator.clients:1000}")
+    private int clientCount;
+
+    @Value("${simulator.agencies:10}")
+    private int agencyCount;
+
+    @Value("${simulator.notes.mean:50}")
+    private double notesMean;
+
+    @Value("${simulator.notes.max:2000}")
+    private int notesMax;
+
+    @Value("${simulator.comment.min-length:20}")
+    private int commentMinLength;
+
+    @Value("${simulator.comment.max-length:2000}")
+    private int commentMaxLength;
+
+    @Value("${simulator.users:500}")
+    private int userCount;
+
+    // Доля дат в ISO-формате, остальные - "yyyy-MM-dd HH:mm:ss"
+    @Value("${simulator.iso-timestamp-ratio:0.5}")
+    private double isoTimestampRatio;
+
+    @Value("${simulator.invalid-timestamp-ratio:0}")
+    private double invalidTimestampRatio;
+
+    // Задержка ответа: base + случайная добавка до jitter + per-note на каждую заметку ответа
+    @Value("${simulator.latency:0ms}")
+    private Duration latency;
+
+    @Value("${simulator.latency-jitter:0ms}")
+    private Duration latencyJitter;
+
+    @Value("${simulator.latency-per-note:0ms}")
+    private Duration latencyPerNote;
+
+    // Доля запросов, на которые отвечаем 503
+    @Value("${simulator.error-rate:0}")
+    private double errorRate;
+
+    private List<OldClientDto> clients;
+    private Map<String, Integer> clientIndex;
+    private String commentText;
+
+    @PostConstruct
+    void init() {
+        Random random = new Random(seed);
+        List<OldClientDto> generated = new ArrayList<>(clientCount);
+        Map<String, Integer> index = new HashMap<>(clientCount * 2);
+        for (int i = 0; i < clientCount; i++) {
+            OldClientDto client = new OldClientDto();
+            client.setAgency("agency-" + (i % Math.max(1, agencyCount)));
+            client.setGuid(new UUID(random.nextLong(), random.nextLong()).toString());
+            client.setFirstName("Simulated");
+            client.setLastName("Client" + i);
+            client.setStatus("active");
+            generated.add(client);
+            index.put(client.getGuid(), i);
+        }
+        clients = List.copyOf(generated);
+        clientIndex = index;
+
+        StringBuilder text = new StringBuilder(Math.max(commentMaxLength, 1));
+        while (text.length() < commentMaxLength) {
+            text.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+        }
+        commentText = text.toString();
+        log.info("Old system simulator: {} clients in {} agencies, ~{} notes per client",
+                clientCount, agencyCount, notesMean);
+    }
+
+    public List<OldClientDto> getClients() {
+        return clients;
+    }
+
+    // Ожидаемое число заметок клиента без учета фильтра по датам
+    public int noteCount(String clientGuid) {
+        Integer index = clientIndex.get(clientGuid);
+        return index != null ? noteCount(index) : 0;
+    }
+
+    public boolean shouldFail() {
+        return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    public void simulateLatency(int notes) throws InterruptedException {
+        long millis = latency.toMillis() + latencyPerNote.multipliedBy(notes).toMillis();
+        if (latencyJitter.toMillis() > 0) {
+            millis += ThreadLocalRandom.current().nextLong(latencyJitter.toMillis() + 1);
+        }
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    /**
+     * Пишет заметки клиента с датой изменения в [dateFrom, dateTo] потоком в {@code generator}.
+     *
+     * @return число записанных заметок
+     */
+    public int writeNotes(String clientGuid, LocalDate dateFrom, LocalDate dateTo, JsonGenerator generator)
+            throws IOException {
+        generator.writeStartArray();
+        Integer index = clientIndex.get(clientGuid);
+        int written = 0;
+        if (index != null) {
+            LocalDateTime from = dateFrom.atStartOfDay();
+            LocalDateTime to = dateTo.plusDays(1).atStartOfDay();
+            // Случайные значения берутся для каждой заметки, поэтому набор не зависит от окна дат
+            Random random = new Random(seed * 31 + index);
+            int count = noteCount(index);
+            for (int i = 0; i < count; i++) {
+                String guid = new UUID(random.nextLong(), random.nextLong()).toString();
+                LocalDateTime created = BASE_DATE.plusMinutes(random.nextInt(CREATED_RANGE_MINUTES));
+                LocalDateTime modified = created.plusMinutes(random.nextInt(MODIFIED_RANGE_MINUTES));
+                int commentLength = commentMinLength + random.nextInt(Math.max(1, commentMaxLength - commentMinLength + 1));
+                String user = "user" + random.nextInt(Math.max(1, userCount));
+                boolean iso = random.nextDouble() < isoTimestampRatio;
+                boolean invalid = random.nextDouble() < invalidTimestampRatio;
+                if (modified.isBefore(from) || !modified.isBefore(to)) {
+                    continue;
+                }
+
+                generator.writeStartObject();
+                generator.writeStringField("comments", commentText.substring(0, Math.min(commentLength, commentText.length())));
+                generator.writeStringField("guid", guid);
+                generator.writeStringField("modifiedDateTime", invalid ? "not-a-date" : format(modified, iso));
+                generator.writeStringField("clientGuid", clientGuid);
+                generator.writeStringField("loggedUser", user);
+                generator.writeStringField("createdDateTime", format(created, iso));
+                generator.writeEndObject();
+                written++;
+            }
+        }
+        generator.writeEndArray();
+        return written;
+    }
+
+    private int noteCount(int clientIndex) {
+        Random random = new Random(seed ^ (0x9E3779B97F4A7C15L * (clientIndex + 1)));
+        double exponential = -notesMean * Math.log(1 - random.nextDouble());
+        return (int) Math.min(notesMax, Math.round(exponential));
+    }
+
+    private static String format(LocalDateTime dateTime, boolean iso) {
+        return iso ? dateTime.toString() : SPACE_FORMAT.format(dateTime);
+    }
+}
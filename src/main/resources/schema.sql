@@ -0,0 +1,89 @@
+-- Служебные таблицы импорта. Скрипт идемпотентный и выполняется при каждом старте
+-- (spring.sql.init.mode=always), поэтому здесь только таблицы, которыми владеет импорт.
+-- Изменения основных таблиц (patient_profile, patient_note) блокируют их и выполняются
+-- разово вне приложения: db/migration.
+
+-- Промежуточная таблица для пакетной записи заметок через COPY (import.write-mode=copy)
+CREATE UNLOGGED TABLE IF NOT EXISTS patient_note_staging (
+    batch_id                 uuid         NOT NULL,
+    old_note_guid            varchar(255) NOT NULL,
+    patient_id               bigint       NOT NULL,
+    created_by_user_id       bigint,
+    last_modified_by_user_id bigint,
+    created_date_time        timestamp,
+    last_modified_date_time  timestamp,
+    note                     text,
+    content_hash             bigint
+);
+ALTER TABLE patient_note_staging ADD COLUMN IF NOT EXISTS content_hash bigint;
+CREATE INDEX IF NOT EXISTS patient_note_staging_batch_idx ON patient_note_staging (batch_id);
+
+-- Водяные знаки инкрементального импорта: до какой даты изменения заметки клиента уже загружены
+CREATE TABLE IF NOT EXISTS client_import_watermark (
+    client_guid             varchar(255) PRIMARY KEY,
+    agency                  varchar(255),
+    last_modified_date_time timestamp,
+    last_full_sync_at       timestamp,
+    updated_at              timestamp
+);
+
+-- Аренда шардов клиентов узлами кластера (import.cluster.enabled=true).
+-- Истекшая аренда свободна: ее забирает любой живой узел
+CREATE TABLE IF NOT EXISTS import_shard_lease (
+    shard_id    integer PRIMARY KEY,
+    owner       varchar(255) NOT NULL,
+    lease_until timestamptz  NOT NULL,
+    updated_at  timestamptz  NOT NULL DEFAULT now()
+);
+
+-- Живые узлы кластера: узел продлевает отметку, пока работает (ShardLeaseService.heartbeat).
+-- Доля шардов узла считается по числу узлов с неистекшей отметкой
+CREATE TABLE IF NOT EXISTS import_node (
+    node_id     varchar(255) PRIMARY KEY,
+    alive_until timestamptz  NOT NULL
+);
+
+-- Контрольные точки прогонов: прерванный прогон (падение JVM, передеплой) продолжается с
+-- незавершенных клиентов. Завершенные клиенты дописываются пачками (ImportCheckpointService)
+CREATE TABLE IF NOT EXISTS import_run (
+    run_id          uuid PRIMARY KEY,
+    node            varchar(255) NOT NULL,
+    options_key     text         NOT NULL,
+    status          varchar(32)  NOT NULL DEFAULT 'RUNNING',
+    client_count    integer      NOT NULL,
+    -- Сколько первых клиентов упорядоченного списка завершено подряд
+    cursor_position integer      NOT NULL DEFAULT 0,
+    attempts        integer      NOT NULL DEFAULT 1,
+    started_at      timestamptz  NOT NULL DEFAULT now(),
+    updated_at      timestamptz  NOT NULL DEFAULT now(),
+    finished_at     timestamptz
+);
+CREATE INDEX IF NOT EXISTS import_run_unfinished_idx ON import_run (node, options_key) WHERE finished_at IS NULL;
+
+CREATE TABLE IF NOT EXISTS import_run_client (
+    run_id       uuid         NOT NULL REFERENCES import_run (run_id) ON DELETE CASCADE,
+    client_guid  varchar(255) NOT NULL,
+    completed_at timestamptz  NOT NULL DEFAULT now(),
+    PRIMARY KEY (run_id, client_guid)
+);
+
+-- Заметки и клиенты, обработка которых завершилась ошибкой (DeadLetterService). Повторяются
+-- отдельным прогоном с экспоненциальной паузой; успешно обработанная запись удаляется
+CREATE TABLE IF NOT EXISTS import_dead_letter (
+    id              bigserial PRIMARY KEY,
+    kind            varchar(16)  NOT NULL,
+    item_key        varchar(255) NOT NULL,
+    client_guid     varchar(255),
+    agency          varchar(255),
+    patient_id      bigint,
+    payload         text,
+    error_class     varchar(255),
+    error_message   text,
+    attempts        integer      NOT NULL DEFAULT 1,
+    status          varchar(16)  NOT NULL DEFAULT 'PENDING',
+    first_failed_at timestamp    NOT NULL,
+    last_failed_at  timestamp    NOT NULL,
+    next_attempt_at timestamp    NOT NULL,
+    UNIQUE (kind, item_key)
+);
+CREATE INDEX IF NOT EXISTS import_dead_letter_due_idx ON import_dead_letter (next_attempt_at) WHERE status = 'PENDING';
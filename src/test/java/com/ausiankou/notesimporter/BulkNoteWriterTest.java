@@ -0,0 +1,146 @@
+package com.ausiankou.notesimporter;
+
+import com.ausiankou.notesimporter.service.BulkNoteWriter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class BulkNoteWriterTest {
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private TransactionTemplate transactionTemplate;
+
+    @InjectMocks
+    private BulkNoteWriter bulkNoteWriter;
+
+    // Строки, переданные через COPY, по пачкам
+    private final List<String> copied = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ReflectionTestUtils.setField(bulkNoteWriter, "batchSize", 5000);
+        lenient().when(transactionTemplate.execute(any()))
+                .thenAnswer(invocation -> invocation.<TransactionCallback<?>>getArgument(0).doInTransaction(null));
+
+        CopyManager copyManager = mock(CopyManager.class);
+        PGConnection pgConnection = mock(PGConnection.class);
+        Connection connection = mock(Connection.class);
+        lenient().when(connection.unwrap(PGConnection.class)).thenReturn(pgConnection);
+        lenient().when(pgConnection.getCopyAPI()).thenReturn(copyManager);
+        lenient().when(copyManager.copyIn(anyString())).thenAnswer(invocation -> copyIn());
+        lenient().when(jdbcTemplate.execute(any(ConnectionCallback.class)))
+                .thenAnswer(invocation -> invocation.<ConnectionCallback<?>>getArgument(0).doInConnection(connection));
+    }
+
+    @Test
+    void testWritesRowsInBatchesAndSumsMergeResults() throws Exception {
+        ReflectionTestUtils.setField(bulkNoteWriter, "batchSize", 2);
+        // Пачка из двух строк: одна создана, одна не изменилась; пачка из одной строки - обновлена
+        mergeReturns(new int[]{1, 0, 1}, new int[]{0, 1, 0});
+
+        LocalDateTime date = LocalDateTime.of(2023, 1, 1, 12, 0);
+        BulkNoteWriter.WriteResult result = bulkNoteWriter.write(List.of(
+                new BulkNoteWriter.NoteRow("note-1", 1L, 10L, date, date, "Note", 7L),
+                new BulkNoteWriter.NoteRow("note-2", 1L, 10L, date, date, "Note", 8L),
+                new BulkNoteWriter.NoteRow("note-3", 1L, 10L, date, date, "Note", 9L)));
+
+        assertEquals(new BulkNoteWriter.WriteResult(1, 1, 1, 0), result);
+        verify(transactionTemplate, times(2)).execute(any());
+        assertEquals(2, copied.size());
+        assertEquals(2, copied.get(0).lines().count());
+        assertEquals(1, copied.get(1).lines().count());
+        // Строки каждой пачки удаляются из промежуточной таблицы по ее batch_id
+        verify(jdbcTemplate, times(2)).update(startsWith("DELETE FROM patient_note_staging"), any(Object.class));
+    }
+
+    @Test
+    void testCountsRowsNotMergedAsSkipped() throws Exception {
+        // Две версии одной заметки: в patient_note попадает одна, вторая - повтор guid
+        mergeReturns(new int[]{1, 0, 0});
+
+        LocalDateTime date = LocalDateTime.of(2023, 1, 1, 12, 0);
+        BulkNoteWriter.WriteResult result = bulkNoteWriter.write(List.of(
+                new BulkNoteWriter.NoteRow("note-1", 1L, 10L, date, date, "Old", 7L),
+                new BulkNoteWriter.NoteRow("note-1", 1L, 10L, date, date.plusDays(1), "New", 8L)));
+
+        assertEquals(new BulkNoteWriter.WriteResult(1, 0, 0, 1), result);
+    }
+
+    @Test
+    void testEscapesTextForCsv() throws Exception {
+        mergeReturns(new int[]{3, 0, 0});
+
+        LocalDateTime date = LocalDateTime.of(2023, 1, 2, 3, 4, 5);
+        bulkNoteWriter.write(List.of(
+                new BulkNoteWriter.NoteRow("note-1", 1L, null, date, date, "Say \"hi\",\nthen go", 7L),
+                new BulkNoteWriter.NoteRow("note-2", 2L, 20L, date, date, "", -1L),
+                new BulkNoteWriter.NoteRow("note-3", 3L, 30L, null, date, null, 0L)));
+
+        String[] rows = copied.getFirst().split("\n(?=[0-9a-f]{8}-)");
+        assertEquals(3, rows.length);
+        // Кавычки удваиваются, перевод строки остается внутри кавычек; автор без id - NULL
+        assertTrue(rows[0].endsWith(",\"note-1\",1,,,2023-01-02T03:04:05,2023-01-02T03:04:05,\"Say \"\"hi\"\",\nthen go\",7"),
+                rows[0]);
+        // Пустая строка в кавычках отличается от NULL - пустого поля без кавычек
+        assertTrue(rows[1].endsWith(",\"note-2\",2,20,20,2023-01-02T03:04:05,2023-01-02T03:04:05,\"\",-1"), rows[1]);
+        assertTrue(rows[2].endsWith(",\"note-3\",3,30,30,,2023-01-02T03:04:05,,0\n"), rows[2]);
+    }
+
+    private CopyIn copyIn() throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        CopyIn copyIn = mock(CopyIn.class);
+        lenient().when(copyIn.isActive()).thenReturn(true);
+        lenient().doAnswer(invocation -> {
+            buffer.write(invocation.<byte[]>getArgument(0), invocation.getArgument(1), invocation.getArgument(2));
+            return null;
+        }).when(copyIn).writeToCopy(any(byte[].class), anyInt(), anyInt());
+        lenient().when(copyIn.endCopy()).thenAnswer(invocation -> {
+            copied.add(buffer.toString(StandardCharsets.UTF_8));
+            return 0L;
+        });
+        return copyIn;
+    }
+
+    // Итоги upsert по пачкам: imported, updated, unchanged
+    private void mergeReturns(int[]... results) throws Exception {
+        List<ResultSet> resultSets = new ArrayList<>();
+        for (int[] result : results) {
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.getInt("imported")).thenReturn(result[0]);
+            when(rs.getInt("updated")).thenReturn(result[1]);
+            when(rs.getInt("unchanged")).thenReturn(result[2]);
+            resultSets.add(rs);
+        }
+        int[] call = {0};
+        when(jdbcTemplate.queryForObject(startsWith("WITH staged"), any(RowMapper.class), any(Object.class)))
+                .thenAnswer(invocation -> invocation.<RowMapper<?>>getArgument(1).mapRow(resultSets.get(call[0]++), 0));
+    }
+}
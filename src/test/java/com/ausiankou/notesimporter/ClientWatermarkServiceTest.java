@@ -0,0 +1,114 @@
+package com.ausiankou.notesimporter;
+
+import com.ausiankou.notesimporter.dto.OldClientDto;
+import com.ausiankou.notesimporter.entity.ClientImportWatermark;
+import com.ausiankou.notesimporter.repository.ClientImportWatermarkRepository;
+import com.ausiankou.notesimporter.service.ClientWatermarkService;
+import com.ausiankou.notesimporter.service.ClientWatermarkService.NoteWindow;
+import com.ausiankou.notesimporter.service.OldSystemClient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ClientWatermarkServiceTest {
+
+    @Mock
+    private ClientImportWatermarkRepository watermarkRepository;
+
+    @InjectMocks
+    private ClientWatermarkService clientWatermarkService;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(clientWatermarkService, "overlap", Duration.ofHours(6));
+        ReflectionTestUtils.setField(clientWatermarkService, "fullResyncInterval", Duration.ofDays(7));
+    }
+
+    @Test
+    void testResolveWindow() {
+        LocalDateTime now = LocalDateTime.now();
+        when(watermarkRepository.findById("new")).thenReturn(Optional.empty());
+        when(watermarkRepository.findById("stale")).thenReturn(Optional.of(watermark(now.minusDays(1), now.minusDays(8))));
+        when(watermarkRepository.findById("recent")).thenReturn(Optional.of(
+                watermark(LocalDateTime.of(2024, 3, 10, 3, 0), now.minusDays(1))));
+        when(watermarkRepository.findById("no-notes")).thenReturn(Optional.of(watermark(null, now.minusDays(1))));
+
+        // Запрошенная полная загрузка не читает водяной знак
+        assertSame(NoteWindow.FULL, clientWatermarkService.resolveWindow("recent", true));
+        verify(watermarkRepository, never()).findById(any());
+        // Новый клиент и клиент, давно не загружавшийся полностью, - полная загрузка
+        assertSame(NoteWindow.FULL, clientWatermarkService.resolveWindow("new", false));
+        assertSame(NoteWindow.FULL, clientWatermarkService.resolveWindow("stale", false));
+
+        // Окно от водяного знака минус перекрытие: 03:00 - 6h переходит на предыдущий день
+        NoteWindow window = clientWatermarkService.resolveWindow("recent", false);
+        assertFalse(window.full());
+        assertEquals(LocalDate.of(2024, 3, 9), window.dateFrom());
+        assertEquals(OldSystemClient.FULL_RANGE_TO, window.dateTo());
+        assertNotNull(window.watermark());
+
+        // Клиент без заметок: отсчет от последней полной загрузки
+        assertEquals(now.minusDays(1).minusHours(6).toLocalDate(),
+                clientWatermarkService.resolveWindow("no-notes", false).dateFrom());
+    }
+
+    @Test
+    void testAdvanceMovesWatermarkForward() {
+        OldClientDto client = client();
+        ClientImportWatermark watermark = watermark(LocalDateTime.of(2024, 3, 10, 12, 0), LocalDateTime.now().minusDays(1));
+        NoteWindow window = new NoteWindow(LocalDate.of(2024, 3, 10), OldSystemClient.FULL_RANGE_TO, false, watermark);
+
+        // Заметки старше водяного знака (перекрытие окна) его не сдвигают назад
+        clientWatermarkService.advance(client, window, LocalDateTime.of(2024, 3, 10, 8, 0));
+        clientWatermarkService.advance(client, window, null);
+        verify(watermarkRepository, never()).save(any());
+        assertEquals(LocalDateTime.of(2024, 3, 10, 12, 0), watermark.getLastModifiedDateTime());
+
+        clientWatermarkService.advance(client, window, LocalDateTime.of(2024, 3, 11, 9, 0));
+        verify(watermarkRepository).save(watermark);
+        assertEquals(LocalDateTime.of(2024, 3, 11, 9, 0), watermark.getLastModifiedDateTime());
+        assertEquals("test-agency", watermark.getAgency());
+    }
+
+    @Test
+    void testAdvanceAfterFullLoadStampsFullSync() {
+        when(watermarkRepository.findById("client-guid")).thenReturn(Optional.empty());
+        LocalDateTime before = LocalDateTime.now();
+
+        // Полная загрузка клиента без заметок тоже запоминается: следующий прогон инкрементальный
+        clientWatermarkService.advance(client(), NoteWindow.FULL, null);
+
+        verify(watermarkRepository).save(argThat(saved -> saved.getClientGuid().equals("client-guid")
+                && saved.getLastModifiedDateTime() == null
+                && !saved.getLastFullSyncAt().isBefore(before)));
+    }
+
+    private static OldClientDto client() {
+        OldClientDto client = new OldClientDto();
+        client.setGuid("client-guid");
+        client.setAgency("test-agency");
+        return client;
+    }
+
+    private static ClientImportWatermark watermark(LocalDateTime lastModified, LocalDateTime lastFullSync) {
+        ClientImportWatermark watermark = new ClientImportWatermark();
+        watermark.setClientGuid("client-guid");
+        watermark.setLastModifiedDateTime(lastModified);
+        watermark.setLastFullSyncAt(lastFullSync);
+        return watermark;
+    }
+}
@@ -0,0 +1,179 @@
+package com.ausiankou.notesimporter;
+
+import com.ausiankou.notesimporter.entity.CompanyUser;
+import com.ausiankou.notesimporter.repository.CompanyUserRepository;
+import com.ausiankou.notesimporter.service.CompanyUserCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class CompanyUserCacheTest {
+
+    @Mock
+    private CompanyUserRepository companyUserRepository;
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @InjectMocks
+    private CompanyUserCache companyUserCache;
+
+    // company_user в памяти: логин -> id
+    private final Map<String, Long> table = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    // Логины каждого запроса findByLoginIn (кэш дальше меняет переданное множество)
+    private final List<Set<String>> selected = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ReflectionTestUtils.setField(companyUserCache, "maxSize", 10_000);
+        lenient().when(companyUserRepository.findByLoginIn(any())).thenAnswer(invocation -> select(invocation.getArgument(0)));
+        // INSERT ... ON CONFLICT DO NOTHING RETURNING: возвращаются только вставленные этим запросом строки
+        lenient().when(jdbcTemplate.query(any(PreparedStatementCreator.class), any(RowMapper.class))).thenAnswer(invocation -> {
+            List<String> logins = insertedLogins(invocation.getArgument(0));
+            RowMapper<?> mapper = invocation.getArgument(1);
+            List<Object> rows = new ArrayList<>();
+            for (String login : logins) {
+                long id = ids.incrementAndGet();
+                if (table.putIfAbsent(login, id) == null) {
+                    rows.add(mapper.mapRow(row(id, login), rows.size()));
+                }
+            }
+            return rows;
+        });
+    }
+
+    @Test
+    void testCreatesMissingUsersOnceAndCachesThem() {
+        table.put("known", ids.incrementAndGet());
+
+        Map<String, CompanyUser> users = companyUserCache.resolve(List.of("known", "new", "known"));
+
+        assertEquals(Set.of("known", "new"), users.keySet());
+        assertEquals(table.get("new"), users.get("new").getId());
+        verify(jdbcTemplate, times(1)).query(any(PreparedStatementCreator.class), any(RowMapper.class));
+
+        // Повторное обращение - из кэша, без запросов
+        companyUserCache.resolve(List.of("known", "new"));
+        verify(companyUserRepository, times(1)).findByLoginIn(any());
+        assertEquals(2, companyUserCache.getHits());
+        assertEquals(2, companyUserCache.getMisses());
+    }
+
+    @Test
+    void testSkipsNullLogins() {
+        Map<String, CompanyUser> users = companyUserCache.resolve(Arrays.asList(null, "user", null));
+
+        assertEquals(Set.of("user"), users.keySet());
+        assertEquals(List.of(Set.of("user")), selected);
+        assertEquals(Set.of("user"), table.keySet());
+
+        // Пачка только из заметок без автора не обращается к БД
+        assertTrue(companyUserCache.resolve(Collections.singletonList(null)).isEmpty());
+        assertEquals(1, selected.size());
+    }
+
+    @Test
+    void testConcurrentResolutionOfSameNewLogin() throws Exception {
+        // Оба потока не нашли логин и вставляют его одновременно: побеждает один INSERT,
+        // второй ничего не получает из RETURNING и перечитывает строку победителя
+        CyclicBarrier bothMissed = new CyclicBarrier(2);
+        doAnswer(invocation -> {
+            List<CompanyUser> found = select(invocation.getArgument(0));
+            if (found.isEmpty()) {
+                bothMissed.await(5, TimeUnit.SECONDS);
+            }
+            return found;
+        }).when(companyUserRepository).findByLoginIn(any());
+
+        List<Future<Map<String, CompanyUser>>> results = new ArrayList<>();
+        try (ExecutorService threads = Executors.newFixedThreadPool(2)) {
+            for (int i = 0; i < 2; i++) {
+                results.add(threads.submit(() -> companyUserCache.resolve(List.of("new-user"))));
+            }
+        }
+
+        assertEquals(1, table.size());
+        Long id = table.get("new-user");
+        assertEquals(id, results.get(0).get().get("new-user").getId());
+        assertEquals(id, results.get(1).get().get("new-user").getId());
+        verify(jdbcTemplate, times(2)).query(any(PreparedStatementCreator.class), any(RowMapper.class));
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsed() {
+        ReflectionTestUtils.setField(companyUserCache, "maxSize", 2);
+        companyUserCache.resolve(List.of("a"));
+        companyUserCache.resolve(List.of("b"));
+        // Обращение к "a" делает самым давним "b"
+        companyUserCache.resolve(List.of("a"));
+        companyUserCache.resolve(List.of("c"));
+        assertEquals(2, companyUserCache.size());
+
+        selected.clear();
+        companyUserCache.resolve(List.of("a", "c"));
+        assertTrue(selected.isEmpty());
+
+        companyUserCache.resolve(List.of("b"));
+        assertEquals(List.of(Set.of("b")), selected);
+        // Вытесненный пользователь перечитан, а не создан заново
+        assertEquals(3, table.size());
+    }
+
+    private List<CompanyUser> select(Collection<String> logins) {
+        selected.add(Set.copyOf(logins));
+        List<CompanyUser> found = new ArrayList<>();
+        for (String login : logins) {
+            Long id = table.get(login);
+            if (id != null) {
+                CompanyUser user = new CompanyUser();
+                user.setId(id);
+                user.setLogin(login);
+                found.add(user);
+            }
+        }
+        return found;
+    }
+
+    // Логины, переданные массивом в INSERT
+    private static List<String> insertedLogins(PreparedStatementCreator creator) throws Exception {
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+        List<String> logins = new ArrayList<>();
+        when(connection.createArrayOf(eq("text"), any())).thenAnswer(invocation -> {
+            for (Object login : invocation.<Object[]>getArgument(1)) {
+                logins.add((String) login);
+            }
+            return mock(Array.class);
+        });
+        creator.createPreparedStatement(connection);
+        return logins;
+    }
+
+    private static ResultSet row(long id, String login) throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getLong("id")).thenReturn(id);
+        when(rs.getString("login")).thenReturn(login);
+        return rs;
+    }
+}
@@ -0,0 +1,103 @@
+package com.ausiankou.notesimporter;
+
+import com.ausiankou.notesimporter.dto.OldNoteDto;
+import com.ausiankou.notesimporter.entity.ImportDeadLetter;
+import com.ausiankou.notesimporter.repository.ImportDeadLetterRepository;
+import com.ausiankou.notesimporter.repository.ImportDeadLetterRepository.DeadLetterKey;
+import com.ausiankou.notesimporter.service.DeadLetterService;
+import com.ausiankou.notesimporter.service.DeadLetterService.PendingDeadLetters;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class DeadLetterServiceTest {
+
+    private final ImportDeadLetterRepository deadLetterRepository = mock(ImportDeadLetterRepository.class);
+    // Даты - строками ISO, как в ObjectMapper Spring Boot
+    private final DeadLetterService deadLetterService = new DeadLetterService(deadLetterRepository,
+            Jackson2ObjectMapperBuilder.json().featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS).build());
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(deadLetterService, "enabled", true);
+        ReflectionTestUtils.setField(deadLetterService, "maxAttempts", 10);
+        ReflectionTestUtils.setField(deadLetterService, "initialBackoff", Duration.ofMinutes(1));
+        ReflectionTestUtils.setField(deadLetterService, "maxBackoff", Duration.ofHours(6));
+    }
+
+    @Test
+    void testPendingSeparatesExhaustedNotes() {
+        List<DeadLetterKey> keys = List.of(key(DeadLetterService.NOTE, "note-guid"), key(DeadLetterService.CLIENT, "client-guid"));
+        List<DeadLetterKey> exhausted = List.of(key(DeadLetterService.NOTE, "exhausted-note"),
+                key(DeadLetterService.CLIENT, "exhausted-client"));
+        when(deadLetterRepository.findKeysByStatus(DeadLetterService.PENDING)).thenReturn(keys);
+        when(deadLetterRepository.findKeysByStatus(DeadLetterService.EXHAUSTED)).thenReturn(exhausted);
+
+        PendingDeadLetters pending = deadLetterService.pending();
+
+        assertTrue(pending.removeNote("note-guid"));
+        assertTrue(pending.removeClient("client-guid"));
+        assertFalse(pending.removeNote("client-guid"));
+        // Записи EXHAUSTED ждут разбора вручную: прогон их не снимает, только узнает заметки
+        assertFalse(pending.removeNote("exhausted-note"));
+        assertFalse(pending.removeClient("exhausted-client"));
+        assertTrue(pending.isExhaustedNote("exhausted-note"));
+        assertFalse(pending.isExhaustedNote("note-guid"));
+    }
+
+    @Test
+    void testRejectedNoteIsExhaustedAndKeepsRawTimestamps() throws Exception {
+        OldNoteDto note = new OldNoteDto();
+        note.setGuid("note-guid");
+        note.setClientGuid("client-guid");
+        note.setCreatedDateTimeText("2023-01-01 12:00:00");
+        note.setModifiedDateTimeText("01/02/2023");
+
+        deadLetterService.noteRejected(note, null, 1L, "java.time.format.DateTimeParseException",
+                "Invalid timestamps: modifiedDateTime='01/02/2023'");
+
+        // Одна попытка: запись сразу получает статус EXHAUSTED и не повторяется
+        ArgumentCaptor<String> payload = ArgumentCaptor.forClass(String.class);
+        verify(deadLetterRepository).recordFailure(eq(DeadLetterService.NOTE), eq("note-guid"), eq("client-guid"),
+                isNull(), eq(1L), payload.capture(), any(), eq("Invalid timestamps: modifiedDateTime='01/02/2023'"),
+                eq(1), anyDouble(), anyDouble());
+
+        // Исходная строка даты сохраняется в данных записи и читается обратно
+        ImportDeadLetter deadLetter = new ImportDeadLetter();
+        deadLetter.setPayload(payload.getValue());
+        OldNoteDto restored = deadLetterService.notePayload(deadLetter);
+        assertFalse(restored.hasValidTimestamps());
+        assertEquals("modifiedDateTime='01/02/2023'", restored.getInvalidTimestamps());
+        assertEquals(LocalDateTime.of(2023, 1, 1, 12, 0), restored.getCreatedDateTime());
+    }
+
+    @Test
+    void testFailedNoteGetsConfiguredAttempts() {
+        OldNoteDto note = new OldNoteDto();
+        note.setGuid("note-guid");
+
+        deadLetterService.noteFailed(note, null, 1L, new IllegalStateException("constraint violation"));
+
+        verify(deadLetterRepository).recordFailure(eq(DeadLetterService.NOTE), eq("note-guid"), any(), any(), eq(1L),
+                argThat(payload -> !payload.contains("invalidTimestamps")), eq(IllegalStateException.class.getName()),
+                eq("constraint violation"), eq(10), eq(60d), eq(21600d));
+    }
+
+    private static DeadLetterKey key(String kind, String itemKey) {
+        DeadLetterKey key = mock(DeadLetterKey.class);
+        when(key.getKind()).thenReturn(kind);
+        when(key.getItemKey()).thenReturn(itemKey);
+        return key;
+    }
+}
@@ -0,0 +1,119 @@
+package com.ausiankou.notesimporter;
+
+import com.ausiankou.notesimporter.service.ImportAuditLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImportAuditLogTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testWritesEveryRecordFromConcurrentProducers() throws Exception {
+        Path file = dir.resolve("audit.log");
+        // Буфер намного меньше числа записей: писатели ждут, пока фоновый поток освободит место
+        ImportAuditLog auditLog = new ImportAuditLog(true, file, 64, Duration.ofMillis(10), DataSize.ofMegabytes(100), 3);
+        auditLog.start();
+
+        LocalDateTime created = LocalDateTime.of(2023, 1, 1, 12, 0);
+        try (ExecutorService producers = Executors.newFixedThreadPool(4)) {
+            for (int p = 0; p < 4; p++) {
+                int producer = p;
+                producers.submit(() -> {
+                    for (int i = 0; i < 2500; i++) {
+                        auditLog.record(ImportAuditLog.Action.CREATED, "note-" + producer + "-" + i, 1L, created, created);
+                    }
+                });
+            }
+        }
+        auditLog.close();
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(10_000, lines.size());
+        assertEquals(10_000, lines.stream().distinct().filter(line -> line.contains("\"note\":\"note-")).count());
+        assertTrue(lines.getFirst().contains("\"action\":\"CREATED\""));
+        assertTrue(lines.getFirst().contains("\"created\":\"2023-01-01T12:00\""));
+    }
+
+    @Test
+    void testRotatesBySize() throws IOException {
+        Path file = dir.resolve("audit.log");
+        ImportAuditLog auditLog = new ImportAuditLog(true, file, 1024, Duration.ofMillis(10), DataSize.ofBytes(1000), 3);
+        auditLog.start();
+        for (int i = 0; i < 100; i++) {
+            auditLog.record(ImportAuditLog.Action.UPDATED, "note-" + i, 1L, null, LocalDateTime.of(2023, 1, 2, 12, 0));
+        }
+        auditLog.close();
+
+        // max-files - всего файлов вместе с текущим, более старые перезаписаны
+        assertTrue(Files.exists(file));
+        assertTrue(Files.exists(dir.resolve("audit.log.1")));
+        assertTrue(Files.exists(dir.resolve("audit.log.2")));
+        assertFalse(Files.exists(dir.resolve("audit.log.3")));
+        List<String> lastLines = new ArrayList<>(Files.readAllLines(file));
+        assertTrue(lastLines.getLast().contains("\"note\":\"note-99\""));
+
+        // Файлы идут подряд от старых к новым: последняя запись file.1 - перед первой записью file
+        List<String> previous = Files.readAllLines(dir.resolve("audit.log.1"));
+        int last = noteNumber(previous.getLast());
+        assertEquals(last + 1, noteNumber(lastLines.getFirst()));
+        assertEquals(noteNumber(Files.readAllLines(dir.resolve("audit.log.2")).getLast()) + 1, noteNumber(previous.getFirst()));
+    }
+
+    @Test
+    void testRotationCountsEncodedBytes() throws IOException {
+        Path file = dir.resolve("audit.log");
+        ImportAuditLog auditLog = new ImportAuditLog(true, file, 1024, Duration.ofMillis(10), DataSize.ofBytes(1000), 2);
+        auditLog.start();
+        // Кириллица - два байта UTF-8 на символ
+        String guid = "заметка-".repeat(8);
+        for (int i = 0; i < 50; i++) {
+            auditLog.record(ImportAuditLog.Action.CREATED, guid + i, 1L, null, null);
+        }
+        auditLog.close();
+
+        // Файл ротируется, как только достиг предела в байтах: превышение - не больше одной записи
+        long rotatedSize = Files.size(dir.resolve("audit.log.1"));
+        long lineBytes = Files.readAllLines(dir.resolve("audit.log.1")).getFirst().getBytes(StandardCharsets.UTF_8).length + 1;
+        assertTrue(rotatedSize >= 1000 && rotatedSize < 1000 + lineBytes, String.valueOf(rotatedSize));
+        assertFalse(Files.exists(dir.resolve("audit.log.2")));
+    }
+
+    @Test
+    void testSingleFileIsTruncatedOnRotation() throws IOException {
+        Path file = dir.resolve("audit.log");
+        ImportAuditLog auditLog = new ImportAuditLog(true, file, 1024, Duration.ofMillis(10), DataSize.ofBytes(1000), 1);
+        auditLog.start();
+        for (int i = 0; i < 100; i++) {
+            auditLog.record(ImportAuditLog.Action.UPDATED, "note-" + i, 1L, null, null);
+        }
+        auditLog.close();
+
+        assertFalse(Files.exists(dir.resolve("audit.log.1")));
+        assertTrue(Files.size(file) < 1000 * 2);
+        assertTrue(Files.readAllLines(file).getLast().contains("\"note\":\"note-99\""));
+    }
+
+    private static int noteNumber(String line) {
+        Matcher matcher = Pattern.compile("\"note\":\"note-(\\d+)\"").matcher(line);
+        assertTrue(matcher.find(), line);
+        return Integer.parseInt(matcher.group(1));
+    }
+}
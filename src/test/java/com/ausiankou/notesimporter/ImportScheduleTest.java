@@ -0,0 +1,90 @@
+package com.ausiankou.notesimporter;
+
+import com.ausiankou.notesimporter.scheduler.ImportSchedule;
+import com.ausiankou.notesimporter.service.ImportOptions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImportScheduleTest {
+    private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+
+    @Test
+    void testBusyAgenciesArePolledMoreOftenThanDormantOnes() {
+        ImportSchedule schedule = new ImportSchedule(Duration.ofMinutes(1), Duration.ofMinutes(30), 1.0);
+
+        // Первый прогон - полный обход
+        ImportOptions sweep = schedule.plan(START);
+        assertFalse(sweep.isScoped());
+        Instant next = schedule.completed(sweep, Duration.ofSeconds(20),
+                Map.of("busy", 10L, "dormant", 0L), Set.of(), START.plusSeconds(20));
+
+        assertEquals(Duration.ofMinutes(1), schedule.delayOf("busy"));
+        assertEquals(Duration.ofMinutes(2), schedule.delayOf("dormant"));
+        assertEquals(START.plusSeconds(80), next);
+        assertEquals(new ImportOptions(false, Set.of("busy"), Set.of()), schedule.plan(next));
+
+        // Агентство без изменений опрашивается все реже, но не реже max-delay
+        Instant now = next;
+        for (int i = 0; i < 10; i++) {
+            schedule.completed(new ImportOptions(false, Set.of("dormant"), Set.of()), Duration.ofSeconds(1),
+                    Map.of(), Set.of(), now);
+        }
+        assertEquals(Duration.ofMinutes(30), schedule.delayOf("dormant"));
+        assertEquals(Duration.ofMinutes(1), schedule.delayOf("busy"));
+    }
+
+    @Test
+    void testLongRunDelaysTheNextOne() {
+        ImportSchedule schedule = new ImportSchedule(Duration.ofMinutes(1), Duration.ofMinutes(30), 1.0);
+
+        Instant finished = START.plus(Duration.ofMinutes(10));
+        Instant next = schedule.completed(schedule.plan(START), Duration.ofMinutes(10), Map.of("busy", 5L), Set.of(), finished);
+
+        // Агентство уже пора опрашивать, но пауза не меньше длительности прошлого прогона
+        assertEquals(finished.plus(Duration.ofMinutes(10)), next);
+        assertNull(schedule.plan(finished));
+    }
+
+    @Test
+    void testAbortedSweepKeepsAgenciesAndRetriesSoon() {
+        ImportSchedule schedule = new ImportSchedule(Duration.ofMinutes(1), Duration.ofMinutes(30), 1.0);
+        schedule.completed(schedule.plan(START), Duration.ofSeconds(10), Map.of("busy", 10L, "dormant", 0L),
+                Set.of(), START);
+
+        // Следующий полный обход не получил клиентов: агентства не забываются, паузы не растут
+        Instant sweepAt = START.plus(Duration.ofMinutes(30));
+        assertFalse(schedule.plan(sweepAt).isScoped());
+        Instant next = schedule.aborted(sweepAt);
+
+        assertEquals(sweepAt.plus(Duration.ofMinutes(1)), next);
+        assertEquals(Duration.ofMinutes(1), schedule.delayOf("busy"));
+        assertEquals(Duration.ofMinutes(2), schedule.delayOf("dormant"));
+        // Срок полного обхода не сдвинут: он повторяется
+        assertFalse(schedule.plan(next).isScoped());
+    }
+
+    @Test
+    void testFailedAgencyIsNotTreatedAsDormant() {
+        ImportSchedule schedule = new ImportSchedule(Duration.ofMinutes(1), Duration.ofMinutes(30), 1.0);
+        schedule.completed(schedule.plan(START), Duration.ofSeconds(10), Map.of("failing", 0L, "dormant", 0L),
+                Set.of(), START);
+        assertEquals(Duration.ofMinutes(2), schedule.delayOf("failing"));
+
+        Instant now = START.plus(Duration.ofMinutes(2));
+        ImportOptions options = new ImportOptions(false, Set.of("failing", "dormant"), Set.of());
+        for (int i = 0; i < 3; i++) {
+            schedule.completed(options, Duration.ofSeconds(1), Map.of("failing", 0L, "dormant", 0L),
+                    Set.of("failing"), now);
+        }
+
+        // Клиенты агентства обработаны с ошибками: пауза не удваивается, как у затихшего
+        assertEquals(Duration.ofMinutes(2), schedule.delayOf("failing"));
+        assertEquals(Duration.ofMinutes(16), schedule.delayOf("dormant"));
+    }
+}
@@ -3,24 +3,49 @@ package com.ausiankou.notesimporter;
 import com.ausiankou.notesimporter.dto.OldClientDto;
 import com.ausiankou.notesimporter.dto.OldNoteDto;
 import com.ausiankou.notesimporter.entity.CompanyUser;
+import com.ausiankou.notesimporter.entity.ImportDeadLetter;
 import com.ausiankou.notesimporter.entity.PatientNote;
-import com.ausiankou.notesimporter.entity.PatientProfile;
-import com.ausiankou.notesimporter.repository.CompanyUserRepository;
 import com.ausiankou.notesimporter.repository.PatientNoteRepository;
 import com.ausiankou.notesimporter.repository.PatientProfileRepository;
+import com.ausiankou.notesimporter.service.ClientWatermarkService;
+import com.ausiankou.notesimporter.service.CompanyUserCache;
+import com.ausiankou.notesimporter.service.DeadLetterService;
+import com.ausiankou.notesimporter.service.ImportAuditLog;
+import com.ausiankou.notesimporter.service.ImportCheckpointService;
+import com.ausiankou.notesimporter.service.ImportMetrics;
+import com.ausiankou.notesimporter.service.ImportOptions;
+import com.ausiankou.notesimporter.service.ImportProgress;
+import com.ausiankou.notesimporter.service.NoteFingerprint;
 import com.ausiankou.notesimporter.service.NoteImportService;
 import com.ausiankou.notesimporter.service.OldSystemClient;
+import com.ausiankou.notesimporter.service.ShardLeaseService;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.client.HttpServerErrorException;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.*;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -34,14 +59,50 @@ class NoteImportServiceTest {
     private PatientProfileRepository patientProfileRepository;
 
     @Mock
-    private CompanyUserRepository companyUserRepository;
+    private CompanyUserCache companyUserCache;
 
     @Mock
     private PatientNoteRepository patientNoteRepository;
 
+    @Mock
+    private ClientWatermarkService clientWatermarkService;
+
+    @Mock
+    private ShardLeaseService shardLeaseService;
+
+    @Mock
+    private ImportCheckpointService importCheckpointService;
+
+    @Mock
+    private DeadLetterService deadLetterService;
+
+    @Mock
+    private ImportMetrics importMetrics;
+
+    @Mock
+    private ImportAuditLog importAuditLog;
+
+    @Mock
+    private TransactionTemplate transactionTemplate;
+
     @InjectMocks
     private NoteImportService noteImportService;
 
+    @BeforeEach
+    void setUp() {
+        lenient().when(clientWatermarkService.resolveWindow(any(), anyBoolean()))
+                .thenReturn(ClientWatermarkService.NoteWindow.FULL);
+        lenient().when(shardLeaseService.claimShards()).thenReturn(ShardLeaseService.ShardClaim.ALL);
+        lenient().when(importCheckpointService.start(any(), any()))
+                .thenReturn(ImportCheckpointService.RunCheckpoint.NONE);
+        lenient().when(deadLetterService.pending()).thenReturn(DeadLetterService.PendingDeadLetters.NONE);
+        // Транзакция без БД: исключение из callback пробрасывается, как при откате
+        lenient().doAnswer(invocation -> {
+            invocation.<Consumer<TransactionStatus>>getArgument(0).accept(null);
+            return null;
+        }).when(transactionTemplate).executeWithoutResult(any());
+    }
+
     @Test
     void testImportNotesWithNewNote() {
         // Подготовка тестовых данных
@@ -53,25 +114,63 @@ class NoteImportServiceTest {
         note.setGuid("note-guid");
         note.setComments("Test note");
         note.setLoggedUser("test-user");
-        note.setCreatedDateTime("2023-01-01 12:00:00");
-        note.setModifiedDateTime("2023-01-01 12:00:00");
+        note.setCreatedDateTime(LocalDateTime.of(2023, 1, 1, 12, 0));
+        note.setModifiedDateTime(LocalDateTime.of(2023, 1, 1, 12, 0));
 
-        PatientProfile patient = new PatientProfile();
-        patient.setStatusId((short)200);
+        PatientProfileRepository.PatientGuidView patient = patientView("client-guid", 1L, (short) 200);
 
         // Настройка моков
         when(oldSystemClient.getAllClients()).thenReturn(List.of(client));
-        when(patientProfileRepository.findByOldClientGuid(any())).thenReturn(Optional.of(patient));
-        when(oldSystemClient.getClientNotes(any(), any())).thenReturn(List.of(note));
-        when(companyUserRepository.findByLogin(any())).thenReturn(Optional.empty());
-        when(companyUserRepository.save(any())).thenReturn(new CompanyUser());
-        when(patientNoteRepository.findByOldNoteGuid(any())).thenReturn(Optional.empty());
+        when(patientProfileRepository.findByOldClientGuids(eq("client-guid"), any())).thenReturn(List.of(patient));
+        when(oldSystemClient.getClientNotes(any(), any(), any(), any())).thenReturn(List.of(note));
+        when(companyUserCache.resolve(List.of("test-user"))).thenReturn(Map.of("test-user", new CompanyUser()));
+        when(patientNoteRepository.findExistingByOldNoteGuidIn(any())).thenReturn(List.of());
 
         // Выполнение теста
         noteImportService.importNotes();
 
         // Проверки
         verify(patientNoteRepository, times(1)).save(any(PatientNote.class));
+        verify(importAuditLog).record(ImportAuditLog.Action.CREATED, "note-guid", 1L,
+                LocalDateTime.of(2023, 1, 1, 12, 0), LocalDateTime.of(2023, 1, 1, 12, 0));
+    }
+
+    @Test
+    void testImportNotesKeepsWatermarkWhenFetchFails() {
+        OldClientDto client = new OldClientDto();
+        client.setGuid("client-guid");
+        client.setAgency("test-agency");
+
+        PatientProfileRepository.PatientGuidView patient = patientView("client-guid", 1L, (short) 200);
+
+        when(oldSystemClient.getAllClients()).thenReturn(List.of(client));
+        when(patientProfileRepository.findByOldClientGuids(eq("client-guid"), any())).thenReturn(List.of(patient));
+        when(oldSystemClient.getClientNotes(any(), any(), any(), any()))
+                .thenThrow(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE));
+
+        ImportProgress progress = new ImportProgress();
+        noteImportService.importNotes(ImportOptions.all(true), progress);
+
+        // Неудачный запрос - не клиент без заметок: водяной знак и отметка полной загрузки не меняются
+        verify(clientWatermarkService, never()).advance(any(), any(), any());
+        verify(deadLetterService).clientFailed(eq(client), any(HttpServerErrorException.class));
+        assertEquals(1, progress.getStats().getErrors());
+        // Прогон завершен, но агентство не затихло: все его клиенты - с ошибками
+        assertTrue(progress.isCompleted());
+        assertEquals(Set.of("test-agency"), progress.getFailedAgencies());
+        assertEquals(Map.of("test-agency", 0L), progress.getChangesByAgency());
+    }
+
+    @Test
+    void testImportNotesWithoutClientsIsNotCompleted() {
+        when(oldSystemClient.getAllClients()).thenReturn(List.of());
+
+        ImportProgress progress = new ImportProgress();
+        assertTrue(noteImportService.importNotes(ImportOptions.all(false), progress));
+
+        // Пустой список клиентов (например, старая система недоступна) - не обход без изменений
+        assertFalse(progress.isCompleted());
+        assertTrue(progress.getChangesByAgency().isEmpty());
     }
 
     @Test
@@ -85,28 +184,69 @@ class NoteImportServiceTest {
         note.setGuid("note-guid");
         note.setComments("Updated note");
         note.setLoggedUser("test-user");
-        note.setCreatedDateTime("2023-01-01 12:00:00");
-        note.setModifiedDateTime("2023-01-02 12:00:00"); // Новая дата изменения
+        note.setCreatedDateTime(LocalDateTime.of(2023, 1, 1, 12, 0));
+        note.setModifiedDateTime(LocalDateTime.of(2023, 1, 2, 12, 0)); // Новая дата изменения
 
-        PatientProfile patient = new PatientProfile();
-        patient.setStatusId((short)200);
+        PatientProfileRepository.PatientGuidView patient = patientView("client-guid", 1L, (short) 200);
 
-        PatientNote existingNote = new PatientNote();
-        existingNote.setLastModifiedDateTime(LocalDateTime.of(2023, 1, 1, 12, 0));
+        PatientNoteRepository.ExistingNoteView existingNote = mock(PatientNoteRepository.ExistingNoteView.class);
+        when(existingNote.getId()).thenReturn(42L);
+        when(existingNote.getOldNoteGuid()).thenReturn("note-guid");
+        when(existingNote.getLastModifiedDateTime()).thenReturn(LocalDateTime.of(2023, 1, 1, 12, 0));
 
         // Настройка моков
         when(oldSystemClient.getAllClients()).thenReturn(List.of(client));
-        when(patientProfileRepository.findByOldClientGuid(any())).thenReturn(Optional.of(patient));
-        when(oldSystemClient.getClientNotes(any(), any())).thenReturn(List.of(note));
-        when(companyUserRepository.findByLogin(any())).thenReturn(Optional.of(new CompanyUser()));
-        when(patientNoteRepository.findByOldNoteGuid(any())).thenReturn(Optional.of(existingNote));
+        when(patientProfileRepository.findByOldClientGuids(eq("client-guid"), any())).thenReturn(List.of(patient));
+        when(oldSystemClient.getClientNotes(any(), any(), any(), any())).thenReturn(List.of(note));
+        when(companyUserCache.resolve(List.of("test-user"))).thenReturn(Map.of("test-user", new CompanyUser()));
+        when(patientNoteRepository.findExistingByOldNoteGuidIn(any())).thenReturn(List.of(existingNote));
 
         // Выполнение теста
         noteImportService.importNotes();
 
         // Проверки
-        verify(patientNoteRepository, times(1)).save(existingNote);
-        assertEquals("Updated note", existingNote.getNote());
+        verify(patientNoteRepository, times(1)).updateContent(
+                eq(42L), eq("Updated note"), eq(LocalDateTime.of(2023, 1, 2, 12, 0)), any(),
+                eq(NoteFingerprint.of(note)));
+        verify(patientNoteRepository, never()).save(any());
+    }
+
+    @Test
+    void testImportNotesSkipsUnchangedContent() {
+        OldClientDto client = new OldClientDto();
+        client.setGuid("client-guid");
+        client.setAgency("test-agency");
+
+        // Старая система сдвинула дату изменения, текст и автор прежние
+        OldNoteDto note = new OldNoteDto();
+        note.setGuid("note-guid");
+        note.setComments("Same note");
+        note.setLoggedUser("test-user");
+        note.setCreatedDateTime(LocalDateTime.of(2023, 1, 1, 12, 0));
+        note.setModifiedDateTime(LocalDateTime.of(2023, 1, 2, 12, 0));
+
+        PatientProfileRepository.PatientGuidView patient = patientView("client-guid", 1L, (short) 200);
+
+        PatientNoteRepository.ExistingNoteView existingNote = mock(PatientNoteRepository.ExistingNoteView.class);
+        when(existingNote.getId()).thenReturn(42L);
+        when(existingNote.getOldNoteGuid()).thenReturn("note-guid");
+        when(existingNote.getLastModifiedDateTime()).thenReturn(LocalDateTime.of(2023, 1, 1, 12, 0));
+        when(existingNote.getContentHash()).thenReturn(NoteFingerprint.of("Same note", "test-user",
+                LocalDateTime.of(2023, 1, 1, 12, 0)));
+
+        when(oldSystemClient.getAllClients()).thenReturn(List.of(client));
+        when(patientProfileRepository.findByOldClientGuids(eq("client-guid"), any())).thenReturn(List.of(patient));
+        when(oldSystemClient.getClientNotes(any(), any(), any(), any())).thenReturn(List.of(note));
+        when(companyUserCache.resolve(List.of("test-user"))).thenReturn(Map.of("test-user", new CompanyUser()));
+        when(patientNoteRepository.findExistingByOldNoteGuidIn(any())).thenReturn(List.of(existingNote));
+
+        ImportProgress progress = new ImportProgress();
+        noteImportService.importNotes(ImportOptions.all(false), progress);
+
+        verify(patientNoteRepository, never()).updateContent(any(), any(), any(), any(), any());
+        verify(patientNoteRepository, never()).save(any());
+        assertEquals(1, progress.getStats().getSkippedUnchanged());
+        assertEquals(0, progress.getStats().getUpdated());
     }
 
     @Test
@@ -115,14 +255,383 @@ class NoteImportServiceTest {
         client.setGuid("client-guid");
         client.setAgency("test-agency");
 
-        PatientProfile patient = new PatientProfile();
-        patient.setStatusId((short)100); // Неактивный статус
+        // Пациент со статусом 100 неактивен: запрос с фильтром по статусу его не вернет
+        when(oldSystemClient.getAllClients()).thenReturn(List.of(client));
+        when(patientProfileRepository.findByOldClientGuids(eq("client-guid"), any())).thenReturn(List.of());
+
+        noteImportService.importNotes();
+
+        verify(patientProfileRepository).findByOldClientGuids(eq("client-guid"),
+                argThat(statuses -> statuses.contains((short) 200) && !statuses.contains((short) 100)));
+        verify(oldSystemClient, never()).getClientNotes(any(), any(), any(), any());
+    }
+
+    @Test
+    void testImportNotesWithInvalidTimestamp() {
+        OldClientDto client = new OldClientDto();
+        client.setGuid("client-guid");
+        client.setAgency("test-agency");
+
+        OldNoteDto note = new OldNoteDto();
+        note.setGuid("note-guid");
+        note.setComments("Test note");
+        note.setLoggedUser("test-user");
+        note.setCreatedDateTimeText("2023-01-01 12:00:00");
+        note.setModifiedDateTimeText("01/02/2023");
+
+        PatientProfileRepository.PatientGuidView patient = patientView("client-guid", 1L, (short) 200);
 
         when(oldSystemClient.getAllClients()).thenReturn(List.of(client));
-        when(patientProfileRepository.findByOldClientGuid(any())).thenReturn(Optional.of(patient));
+        when(patientProfileRepository.findByOldClientGuids(eq("client-guid"), any())).thenReturn(List.of(patient));
+        when(oldSystemClient.getClientNotes(any(), any(), any(), any())).thenReturn(List.of(note));
+
+        ImportProgress progress = new ImportProgress();
+        noteImportService.importNotes(ImportOptions.all(false), progress);
+
+        // Заметка с неразобранной датой не пишется и не сдвигает водяной знак своей датой, но и не
+        // задерживает его: она отложена, иначе клиент загружался бы заново каждым прогоном
+        verify(patientNoteRepository, never()).save(any());
+        verify(clientWatermarkService).advance(client, ClientWatermarkService.NoteWindow.FULL, null);
+        assertEquals(0, progress.getStats().getErrors());
+        assertEquals(1, progress.getStats().getRejected());
+        // Повтор дату не исправит: запись сразу ждет разбора вручную, с исходной строкой даты
+        verify(deadLetterService).noteRejected(eq(note), eq(client), eq(1L), any(),
+                eq("Invalid timestamps: modifiedDateTime='01/02/2023'"));
+        verify(deadLetterService, never()).noteFailed(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    void testImportNotesInPipeline() {
+        ReflectionTestUtils.setField(noteImportService, "clientConcurrency", 4);
+        ReflectionTestUtils.setField(noteImportService, "noteBatchSize", 2);
+
+        OldClientDto client = new OldClientDto();
+        client.setGuid("client-guid");
+        client.setAgency("test-agency");
+
+        List<OldNoteDto> notes = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            OldNoteDto note = new OldNoteDto();
+            note.setGuid("note-" + i);
+            note.setComments("Note " + i);
+            note.setLoggedUser("test-user");
+            note.setCreatedDateTime(LocalDateTime.of(2023, 1, i, 12, 0));
+            note.setModifiedDateTime(LocalDateTime.of(2023, 1, i, 12, 0));
+            notes.add(note);
+        }
+
+        PatientProfileRepository.PatientGuidView patient = patientView("client-guid", 1L, (short) 200);
+
+        when(oldSystemClient.getAllClients()).thenReturn(List.of(client));
+        when(patientProfileRepository.findByOldClientGuids(eq("client-guid"), any())).thenReturn(List.of(patient));
+        when(oldSystemClient.getClientNotes(any(), any(), any(), any())).thenReturn(notes);
+        when(companyUserCache.resolve(any())).thenReturn(Map.of("test-user", new CompanyUser()));
+        when(patientNoteRepository.findExistingByOldNoteGuidIn(any())).thenReturn(List.of());
+
+        noteImportService.importNotes();
+
+        // Все три пачки прошли конвейер, водяной знак сдвинут один раз - по последней заметке
+        verify(patientNoteRepository, times(5)).save(any(PatientNote.class));
+        verify(clientWatermarkService, times(1)).advance(eq(client), any(), eq(LocalDateTime.of(2023, 1, 5, 12, 0)));
+    }
+
+    @Test
+    void testImportNotesScopedToClients() {
+        OldClientDto client = new OldClientDto();
+        client.setGuid("client-guid");
+        client.setAgency("test-agency");
+
+        OldClientDto otherClient = new OldClientDto();
+        otherClient.setGuid("other-guid");
+        otherClient.setAgency("test-agency");
+
+        when(oldSystemClient.getAllClients()).thenReturn(List.of(client, otherClient));
+        when(patientProfileRepository.findByOldClientGuids(eq("client-guid"), any())).thenReturn(List.of());
+
+        ImportProgress progress = new ImportProgress();
+        assertTrue(noteImportService.importNotes(
+                new ImportOptions(false, Set.of(), Set.of("client-guid")), progress));
+
+        // Клиент вне задания не обрабатывается и даже не ищется среди пациентов
+        verify(patientProfileRepository).findByOldClientGuids(eq("client-guid"), any());
+        assertEquals(1, progress.getClientsTotal());
+        assertEquals(1, progress.getClientsDone());
+    }
+
+    @Test
+    void testImportNotesInClientWindows() {
+        // Окно на два клиента: бюджет 2 КБ при оценке 1 КБ на клиента
+        ReflectionTestUtils.setField(noteImportService, "windowMemoryBudget", DataSize.ofKilobytes(2));
+        ReflectionTestUtils.setField(noteImportService, "windowClientFootprint", DataSize.ofKilobytes(1));
+        ReflectionTestUtils.setField(noteImportService, "patientLookupBatchSize", 1000);
+
+        when(oldSystemClient.streamClients(any())).thenAnswer(invocation -> {
+            Consumer<OldClientDto> consumer = invocation.getArgument(0);
+            for (String guid : List.of("guid-3", "guid-1", "guid-2")) {
+                OldClientDto client = new OldClientDto();
+                client.setGuid(guid);
+                client.setAgency("test-agency");
+                client.setFirstName("First");
+                consumer.accept(client);
+            }
+            return 3;
+        });
+        when(patientProfileRepository.findByOldClientGuids(any(), any())).thenReturn(List.of());
+
+        ImportProgress progress = new ImportProgress();
+        noteImportService.importNotes(ImportOptions.all(false), progress);
+
+        // Клиенты читаются потоком, пациенты ищутся по окнам в порядке guid
+        verify(oldSystemClient, never()).getAllClients();
+        verify(patientProfileRepository).findByOldClientGuids(eq("guid-1,guid-2"), any());
+        verify(patientProfileRepository).findByOldClientGuids(eq("guid-3"), any());
+        assertEquals(3, progress.getClientsDone());
+        assertEquals(3, progress.getStats().getSkipped());
+    }
+
+    @Test
+    void testImportNotesLimitsClientsPerAgency() {
+        ReflectionTestUtils.setField(noteImportService, "clientConcurrency", 4);
+        ReflectionTestUtils.setField(noteImportService, "agencyConcurrency", 1);
+        ReflectionTestUtils.setField(noteImportService, "patientLookupBatchSize", 1000);
+
+        List<OldClientDto> clients = new ArrayList<>();
+        List<PatientProfileRepository.PatientGuidView> patients = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            OldClientDto client = new OldClientDto();
+            client.setGuid("guid-" + i);
+            client.setAgency(i <= 3 ? "slow-agency" : "other-agency");
+            clients.add(client);
+            patients.add(patientView("guid-" + i, (long) i, (short) 200));
+        }
+
+        Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+        AtomicInteger maxSlowInFlight = new AtomicInteger();
+        when(oldSystemClient.getAllClients()).thenReturn(clients);
+        when(patientProfileRepository.findByOldClientGuids(any(), any())).thenReturn(patients);
+        when(oldSystemClient.getClientNotes(any(), any(), any(), any())).thenAnswer(invocation -> {
+            String agency = invocation.getArgument(0);
+            AtomicInteger agencyInFlight = inFlight.computeIfAbsent(agency, a -> new AtomicInteger());
+            int current = agencyInFlight.incrementAndGet();
+            if (agency.equals("slow-agency")) {
+                maxSlowInFlight.accumulateAndGet(current, Math::max);
+            }
+            Thread.sleep(20);
+            agencyInFlight.decrementAndGet();
+
+            OldNoteDto note = new OldNoteDto();
+            note.setGuid("note-" + invocation.getArgument(1));
+            note.setComments("Note");
+            note.setLoggedUser("test-user");
+            note.setCreatedDateTime(LocalDateTime.of(2023, 1, 1, 12, 0));
+            note.setModifiedDateTime(LocalDateTime.of(2023, 1, 1, 12, 0));
+            return List.of(note);
+        });
+        when(companyUserCache.resolve(any())).thenReturn(Map.of("test-user", new CompanyUser()));
+        when(patientNoteRepository.findExistingByOldNoteGuidIn(any())).thenReturn(List.of());
+
+        ImportProgress progress = new ImportProgress();
+        noteImportService.importNotes(ImportOptions.all(false), progress);
+
+        // Клиенты одного агентства идут по одному, итоги видны по каждому агентству
+        assertEquals(1, maxSlowInFlight.get());
+        assertEquals(4, progress.getStats().getImported());
+        assertEquals(3, progress.getStats().getByAgency().get("slow-agency").getImported());
+        assertEquals(1, progress.getStats().getByAgency().get("other-agency").getImported());
+        assertEquals(Map.of("slow-agency", 3L, "other-agency", 1L), progress.getChangesByAgency());
+    }
+
+    @Test
+    void testImportNotesResumesFromCheckpoint() {
+        OldClientDto doneClient = new OldClientDto();
+        doneClient.setGuid("done-guid");
+        doneClient.setAgency("test-agency");
+
+        OldClientDto client = new OldClientDto();
+        client.setGuid("client-guid");
+        client.setAgency("test-agency");
+
+        // Прогон оборвался после done-guid: при продолжении он пропускается
+        ImportCheckpointService.RunCheckpoint checkpoint = mock(ImportCheckpointService.RunCheckpoint.class);
+        when(checkpoint.isCompleted(any())).thenAnswer(invocation -> "done-guid".equals(invocation.getArgument(0)));
+        when(importCheckpointService.start(any(), any())).thenReturn(checkpoint);
+        when(oldSystemClient.getAllClients()).thenReturn(List.of(doneClient, client));
+        when(patientProfileRepository.findByOldClientGuids(eq("client-guid"), any())).thenReturn(List.of());
 
         noteImportService.importNotes();
 
-        verify(oldSystemClient, never()).getClientNotes(any(), any());
+        verify(patientProfileRepository).findByOldClientGuids(eq("client-guid"), any());
+        verify(checkpoint).clientCompleted("client-guid");
+        verify(checkpoint, never()).clientCompleted("done-guid");
+        verify(checkpoint).finish("COMPLETED");
+    }
+
+    @Test
+    void testImportNotesIsolatesFailedNoteInChunk() {
+        ReflectionTestUtils.setField(noteImportService, "commitChunkSize", 10);
+
+        OldClientDto client = new OldClientDto();
+        client.setGuid("client-guid");
+        client.setAgency("test-agency");
+
+        List<OldNoteDto> notes = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            OldNoteDto note = new OldNoteDto();
+            note.setGuid("note-" + i);
+            note.setComments("Note " + i);
+            note.setLoggedUser("test-user");
+            note.setCreatedDateTime(LocalDateTime.of(2023, 1, i, 12, 0));
+            note.setModifiedDateTime(LocalDateTime.of(2023, 1, i, 12, 0));
+            notes.add(note);
+        }
+
+        PatientProfileRepository.PatientGuidView patient = patientView("client-guid", 1L, (short) 200);
+
+        when(oldSystemClient.getAllClients()).thenReturn(List.of(client));
+        when(patientProfileRepository.findByOldClientGuids(eq("client-guid"), any())).thenReturn(List.of(patient));
+        when(oldSystemClient.getClientNotes(any(), any(), any(), any())).thenReturn(notes);
+        when(companyUserCache.resolve(any())).thenReturn(Map.of("test-user", new CompanyUser()));
+        when(patientNoteRepository.findExistingByOldNoteGuidIn(any())).thenReturn(List.of());
+        when(patientNoteRepository.save(any(PatientNote.class))).thenAnswer(invocation -> {
+            PatientNote note = invocation.getArgument(0);
+            if ("note-3".equals(note.getOldNoteGuid())) {
+                throw new IllegalStateException("constraint violation");
+            }
+            return note;
+        });
+
+        ImportProgress progress = new ImportProgress();
+        noteImportService.importNotes(ImportOptions.all(false), progress);
+
+        // Чанк из пяти откатывается и делится, пока note-3 не останется одна
+        assertEquals(4, progress.getStats().getImported());
+        assertEquals(1, progress.getStats().getErrors());
+        verify(transactionTemplate, times(5)).executeWithoutResult(any());
+        verify(deadLetterService).noteFailed(argThat(note -> "note-3".equals(note.getGuid())), any(), eq(1L),
+                any(IllegalStateException.class));
+    }
+
+    @Test
+    void testExhaustedNoteStopsHoldingBackWatermark() {
+        OldClientDto client = new OldClientDto();
+        client.setGuid("client-guid");
+        client.setAgency("test-agency");
+
+        List<OldNoteDto> notes = new ArrayList<>();
+        for (int i = 1; i <= 2; i++) {
+            OldNoteDto note = new OldNoteDto();
+            note.setGuid("note-" + i);
+            note.setComments("Note " + i);
+            note.setLoggedUser("test-user");
+            note.setCreatedDateTime(LocalDateTime.of(2023, 1, i, 12, 0));
+            note.setModifiedDateTime(LocalDateTime.of(2023, 1, i, 12, 0));
+            notes.add(note);
+        }
+
+        PatientProfileRepository.PatientGuidView patient = patientView("client-guid", 1L, (short) 200);
+
+        when(oldSystemClient.getAllClients()).thenReturn(List.of(client));
+        when(patientProfileRepository.findByOldClientGuids(eq("client-guid"), any())).thenReturn(List.of(patient));
+        when(oldSystemClient.getClientNotes(any(), any(), any(), any())).thenReturn(notes);
+        when(companyUserCache.resolve(any())).thenReturn(Map.of("test-user", new CompanyUser()));
+        when(patientNoteRepository.findExistingByOldNoteGuidIn(any())).thenReturn(List.of());
+        when(patientNoteRepository.save(any(PatientNote.class))).thenAnswer(invocation -> {
+            PatientNote note = invocation.getArgument(0);
+            if ("note-2".equals(note.getOldNoteGuid())) {
+                throw new IllegalStateException("constraint violation");
+            }
+            return note;
+        });
+
+        // Первый прогон: ошибка заметки задерживает водяной знак, заметка уходит в хранилище ошибок
+        ImportProgress first = new ImportProgress();
+        noteImportService.importNotes(ImportOptions.all(false), first);
+        assertEquals(1, first.getStats().getErrors());
+        verify(clientWatermarkService, never()).advance(any(), any(), any());
+
+        // Попытки заметки исчерпаны: следующий прогон откладывает ее и сдвигает водяной знак
+        DeadLetterService.PendingDeadLetters exhausted = mock(DeadLetterService.PendingDeadLetters.class);
+        when(exhausted.isExhaustedNote("note-2")).thenReturn(true);
+        when(deadLetterService.pending()).thenReturn(exhausted);
+
+        ImportProgress second = new ImportProgress();
+        noteImportService.importNotes(ImportOptions.all(false), second);
+        assertEquals(0, second.getStats().getErrors());
+        assertEquals(1, second.getStats().getRejected());
+        verify(clientWatermarkService).advance(client, ClientWatermarkService.NoteWindow.FULL, LocalDateTime.of(2023, 1, 2, 12, 0));
+        assertTrue(second.getFailedAgencies().isEmpty());
+    }
+
+    @Test
+    void testReplayDeadLettersWritesOnlyStoredNotes() throws Exception {
+        ImportDeadLetter deadLetter = new ImportDeadLetter();
+        deadLetter.setKind(DeadLetterService.NOTE);
+        deadLetter.setItemKey("note-guid");
+        deadLetter.setPatientId(1L);
+
+        OldNoteDto note = new OldNoteDto();
+        note.setGuid("note-guid");
+        note.setComments("Test note");
+        note.setLoggedUser("test-user");
+        note.setCreatedDateTime(LocalDateTime.of(2023, 1, 1, 12, 0));
+        note.setModifiedDateTime(LocalDateTime.of(2023, 1, 1, 12, 0));
+
+        when(deadLetterService.findDue()).thenReturn(List.of(deadLetter));
+        when(deadLetterService.notePayload(deadLetter)).thenReturn(note);
+        when(companyUserCache.resolve(any())).thenReturn(Map.of("test-user", new CompanyUser()));
+        when(patientNoteRepository.findExistingByOldNoteGuidIn(any())).thenReturn(List.of());
+
+        ImportProgress progress = new ImportProgress();
+        noteImportService.importNotes(ImportOptions.deadLetterReplay(), progress);
+
+        // Старая система не опрашивается: заметка берется из хранилища ошибок
+        assertEquals(1, progress.getStats().getImported());
+        verify(patientNoteRepository).save(any(PatientNote.class));
+        verify(oldSystemClient, never()).getAllClients();
+        verify(oldSystemClient, never()).getClientNotes(any(), any(), any(), any());
+    }
+
+    @Test
+    void testReplayDeadLettersRejectsNotesWithInvalidTimestamps() throws Exception {
+        ImportDeadLetter withRawDates = new ImportDeadLetter();
+        withRawDates.setKind(DeadLetterService.NOTE);
+        withRawDates.setItemKey("note-1");
+        withRawDates.setPatientId(1L);
+        OldNoteDto invalid = new OldNoteDto();
+        invalid.setGuid("note-1");
+        invalid.setCreatedDateTimeText("2023-01-01 12:00:00");
+        invalid.setModifiedDateTimeText("01/02/2023");
+
+        // Запись, сохраненная без исходных строк дат: ее описание ошибки не затирается
+        ImportDeadLetter legacy = new ImportDeadLetter();
+        legacy.setKind(DeadLetterService.NOTE);
+        legacy.setItemKey("note-2");
+        legacy.setPatientId(1L);
+        legacy.setErrorMessage("Invalid timestamps: createdDateTime='yesterday'");
+        OldNoteDto missing = new OldNoteDto();
+        missing.setGuid("note-2");
+
+        when(deadLetterService.findDue()).thenReturn(List.of(withRawDates, legacy));
+        when(deadLetterService.notePayload(withRawDates)).thenReturn(invalid);
+        when(deadLetterService.notePayload(legacy)).thenReturn(missing);
+
+        ImportProgress progress = new ImportProgress();
+        noteImportService.importNotes(ImportOptions.deadLetterReplay(), progress);
+
+        assertEquals(2, progress.getStats().getRejected());
+        verify(deadLetterService).noteRejected(eq(invalid), isNull(), eq(1L), any(),
+                eq("Invalid timestamps: modifiedDateTime='01/02/2023'"));
+        verify(deadLetterService).noteRejected(eq(missing), isNull(), eq(1L), any(),
+                eq("Invalid timestamps: createdDateTime='yesterday'"));
+        verify(deadLetterService, never()).noteFailed(any(), any(), any(), any(), any());
+        verify(patientNoteRepository, never()).save(any());
+    }
+
+    private PatientProfileRepository.PatientGuidView patientView(String guid, Long id, Short statusId) {
+        PatientProfileRepository.PatientGuidView view = mock(PatientProfileRepository.PatientGuidView.class);
+        lenient().when(view.getGuid()).thenReturn(guid);
+        lenient().when(view.getId()).thenReturn(id);
+        lenient().when(view.getStatusId()).thenReturn(statusId);
+        return view;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,48 @@
+package com.ausiankou.notesimporter;
+
+import com.ausiankou.notesimporter.dto.OldDateTimeParser;
+import com.ausiankou.notesimporter.dto.OldNoteDto;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OldDateTimeParserTest {
+
+    @Test
+    void testParseBothFormats() {
+        assertEquals(LocalDateTime.of(2023, 1, 1, 12, 0, 5), OldDateTimeParser.parse("2023-01-01 12:00:05"));
+        assertEquals(LocalDateTime.of(2023, 1, 1, 12, 0, 5), OldDateTimeParser.parse("2023-01-01T12:00:05"));
+        assertEquals(LocalDateTime.of(2023, 1, 1, 12, 30), OldDateTimeParser.parse("2023-01-01T12:30"));
+        assertEquals(LocalDateTime.of(2023, 1, 1, 12, 0, 5, 123_000_000),
+                OldDateTimeParser.parse("2023-01-01T12:00:05.123"));
+        assertEquals(LocalDateTime.of(2024, 2, 29, 0, 0), OldDateTimeParser.parse("2024-02-29 00:00:00"));
+    }
+
+    @Test
+    void testInvalidValuesReturnNull() {
+        assertNull(OldDateTimeParser.parse(null));
+        assertNull(OldDateTimeParser.parse(""));
+        assertNull(OldDateTimeParser.parse("not a date"));
+        assertNull(OldDateTimeParser.parse("2023-01-01 12:00"));
+        assertNull(OldDateTimeParser.parse("2023-13-01 12:00:00"));
+        assertNull(OldDateTimeParser.parse("2023-02-29 12:00:00"));
+        assertNull(OldDateTimeParser.parse("2023-01-01 24:00:00"));
+        assertNull(OldDateTimeParser.parse("2023-01-01T12:00:00Z"));
+        assertNull(OldDateTimeParser.parse("2023-01-01T12:00:00.1234567890"));
+    }
+
+    @Test
+    void testDeserializationKeepsInvalidValues() throws Exception {
+        OldNoteDto note = new ObjectMapper().readValue(
+                "{\"guid\":\"n1\",\"createdDateTime\":\"2023-01-01 12:00:00\",\"modifiedDateTime\":\"yesterday\"}",
+                OldNoteDto.class);
+
+        assertEquals(LocalDateTime.of(2023, 1, 1, 12, 0), note.getCreatedDateTime());
+        assertNull(note.getModifiedDateTime());
+        assertFalse(note.hasValidTimestamps());
+        assertEquals("modifiedDateTime='yesterday'", note.getInvalidTimestamps());
+    }
+}
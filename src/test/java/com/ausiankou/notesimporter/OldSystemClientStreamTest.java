@@ -0,0 +1,135 @@
+package com.ausiankou.notesimporter;
+
+import com.ausiankou.notesimporter.dto.OldClientDto;
+import com.ausiankou.notesimporter.dto.OldNoteDto;
+import com.ausiankou.notesimporter.service.ImportMetrics;
+import com.ausiankou.notesimporter.service.OldSystemClient;
+import com.ausiankou.notesimporter.service.OldSystemLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.client.ExpectedCount;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.*;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.*;
+
+class OldSystemClientStreamTest {
+    private static final String NOTE = """
+            {"guid":"%s","clientGuid":"client-guid","comments":"Note","loggedUser":"user",
+             "createdDateTime":"2023-01-02 10:00:00","modifiedDateTime":"%s"}""";
+
+    private MockRestServiceServer server;
+    private OldSystemLimiter limiter;
+    private OldSystemClient oldSystemClient;
+
+    @BeforeEach
+    void setUp() {
+        RestTemplate restTemplate = new RestTemplate();
+        server = MockRestServiceServer.bindTo(restTemplate).build();
+        ImportMetrics metrics = new ImportMetrics(new SimpleMeterRegistry());
+        limiter = new OldSystemLimiter(metrics, 4, 1, 16, 0.5, Duration.ofSeconds(10),
+                100, Duration.ofSeconds(30), Duration.ofMinutes(2));
+        oldSystemClient = new OldSystemClient(restTemplate, Jackson2ObjectMapperBuilder.json().build(), limiter, metrics);
+        ReflectionTestUtils.setField(oldSystemClient, "oldSystemBaseUrl", "http://old-system");
+        ReflectionTestUtils.setField(oldSystemClient, "retryMaxAttempts", 2);
+        ReflectionTestUtils.setField(oldSystemClient, "retryInitialBackoff", Duration.ofMillis(1));
+        ReflectionTestUtils.setField(oldSystemClient, "retryMaxBackoff", Duration.ofMillis(1));
+    }
+
+    @Test
+    void testStreamClients() {
+        server.expect(requestTo("http://old-system/clients"))
+                .andRespond(withSuccess("""
+                        [{"guid":"guid-1","agency":"agency-a","firstName":"First"},
+                         {"guid":"guid-2","agency":"agency-b","unknownField":[1, {"nested":true}]}]""",
+                        MediaType.APPLICATION_JSON));
+
+        List<OldClientDto> clients = new ArrayList<>();
+        assertEquals(2, oldSystemClient.streamClients(clients::add));
+
+        assertEquals(List.of("guid-1", "guid-2"), clients.stream().map(OldClientDto::getGuid).toList());
+        assertEquals("agency-b", clients.get(1).getAgency());
+        server.verify();
+    }
+
+    @Test
+    void testStreamClientNotes() {
+        server.expect(requestTo("http://old-system/notes"))
+                .andExpect(jsonPath("$.clientGuid").value("client-guid"))
+                .andExpect(jsonPath("$.dateFrom").value("2023-01-01"))
+                .andRespond(withSuccess("[" + NOTE.formatted("note-1", "2023-01-03 10:00:00") + ","
+                        + NOTE.formatted("note-2", "not a date") + "]", MediaType.APPLICATION_JSON));
+
+        List<OldNoteDto> notes = new ArrayList<>();
+        int count = oldSystemClient.streamClientNotes("agency", "client-guid",
+                LocalDate.of(2023, 1, 1), LocalDate.of(2023, 12, 31), notes::add);
+
+        assertEquals(2, count);
+        assertEquals(LocalDateTime.of(2023, 1, 3, 10, 0), notes.get(0).getModifiedDateTime());
+        // Некорректная дата не обрывает разбор: заметка приходит с исходной строкой
+        assertFalse(notes.get(1).hasValidTimestamps());
+        assertEquals("modifiedDateTime='not a date'", notes.get(1).getInvalidTimestamps());
+    }
+
+    @Test
+    void testStreamClientNotesTreatsNotFoundAsEmpty() {
+        server.expect(requestTo("http://old-system/notes")).andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        assertEquals(0, oldSystemClient.streamClientNotes("agency", "client-guid",
+                OldSystemClient.FULL_RANGE_FROM, OldSystemClient.FULL_RANGE_TO, note -> fail("No notes expected")));
+    }
+
+    @Test
+    void testStreamRejectsNonObjectElement() {
+        server.expect(requestTo("http://old-system/notes"))
+                .andRespond(withSuccess("[" + NOTE.formatted("note-1", "2023-01-03 10:00:00") + ", null, "
+                        + NOTE.formatted("note-3", "2023-01-03 10:00:00") + "]", MediaType.APPLICATION_JSON));
+
+        List<OldNoteDto> notes = new ArrayList<>();
+        assertThrows(ResourceAccessException.class, () -> oldSystemClient.streamClientNotes("agency", "client-guid",
+                OldSystemClient.FULL_RANGE_FROM, OldSystemClient.FULL_RANGE_TO, notes::add));
+        assertEquals(1, notes.size());
+    }
+
+    @Test
+    void testStreamRejectsTruncatedArray() {
+        // Обрыв после переданной заметки: повтор не выполняется, ошибка доходит до вызывающего
+        server.expect(ExpectedCount.once(), requestTo("http://old-system/notes"))
+                .andRespond(withSuccess("[" + NOTE.formatted("note-1", "2023-01-03 10:00:00") + ",",
+                        MediaType.APPLICATION_JSON));
+
+        List<OldNoteDto> notes = new ArrayList<>();
+        assertThrows(ResourceAccessException.class, () -> oldSystemClient.streamClientNotes("agency", "client-guid",
+                OldSystemClient.FULL_RANGE_FROM, OldSystemClient.FULL_RANGE_TO, notes::add));
+        assertEquals(1, notes.size());
+        server.verify();
+    }
+
+    @Test
+    void testStreamRejectsNonArrayResponseWithoutRetry() {
+        // Объект ошибки со статусом 200 - не перегрузка: один запрос, предел старой системы не снижается
+        server.expect(ExpectedCount.once(), requestTo("http://old-system/notes"))
+                .andRespond(withSuccess("{\"error\":\"Internal error\"}", MediaType.APPLICATION_JSON));
+        double limit = limiter.getLimit();
+
+        assertThrows(ResourceAccessException.class, () -> oldSystemClient.streamClientNotes("agency", "client-guid",
+                OldSystemClient.FULL_RANGE_FROM, OldSystemClient.FULL_RANGE_TO, note -> fail("No notes expected")));
+        server.verify();
+        assertEquals(limit, limiter.getLimit());
+        assertFalse(limiter.isOpen());
+    }
+}
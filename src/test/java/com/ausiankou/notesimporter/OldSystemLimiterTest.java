@@ -0,0 +1,57 @@
+package com.ausiankou.notesimporter;
+
+import com.ausiankou.notesimporter.service.ImportMetrics;
+import com.ausiankou.notesimporter.service.OldSystemLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OldSystemLimiterTest {
+
+    private static OldSystemLimiter limiter(int initialLimit, int maxLimit, int failureThreshold, Duration openDuration) {
+        return new OldSystemLimiter(new ImportMetrics(new SimpleMeterRegistry()), initialLimit, 1, maxLimit, 0.5,
+                Duration.ofSeconds(10), failureThreshold, openDuration, openDuration.multipliedBy(4));
+    }
+
+    @Test
+    void testLimitGrowsOnSuccessAndShrinksOncePerOverloadWave() throws InterruptedException {
+        OldSystemLimiter limiter = limiter(4, 16, 100, Duration.ofSeconds(30));
+
+        // Примерно +1 за каждые limit успешных запросов
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire().success();
+        }
+        assertEquals(5, (int) limiter.getLimit());
+
+        // Одновременно упавшие запросы одной волны снижают лимит один раз
+        List<OldSystemLimiter.Permit> wave = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            wave.add(limiter.acquire());
+        }
+        wave.forEach(permit -> permit.overloaded("503"));
+        assertEquals(2, (int) limiter.getLimit());
+    }
+
+    @Test
+    void testCircuitPausesRequestsUntilProbeSucceeds() throws InterruptedException {
+        OldSystemLimiter limiter = limiter(2, 2, 2, Duration.ofMillis(200));
+
+        limiter.acquire().overloaded("503");
+        limiter.acquire().overloaded("503");
+        assertTrue(limiter.isOpen());
+
+        // Новый запрос ждет окончания паузы и проходит как пробный
+        long start = System.nanoTime();
+        OldSystemLimiter.Permit probe = limiter.acquire();
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() >= 150);
+        assertTrue(limiter.isOpen());
+
+        probe.success();
+        assertFalse(limiter.isOpen());
+    }
+}
@@ -0,0 +1,188 @@
+package com.ausiankou.notesimporter;
+
+import com.ausiankou.notesimporter.service.ShardLeaseService;
+import com.ausiankou.notesimporter.service.ShardLeaseService.ShardClaim;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardLeaseServiceTest {
+    private static final int SHARDS = 8;
+    private static final Duration LEASE_TTL = Duration.ofMinutes(5);
+
+    private final LeaseTable table = new LeaseTable();
+
+    @Test
+    void testNewNodeGetsItsShareFromIncumbent() {
+        ShardLeaseService first = node();
+        ShardLeaseService second = node();
+
+        // Первый узел один: берет все шарды
+        assertEquals(SHARDS, ownedBy(first.claimShards()));
+
+        // Новый узел отметился, но свободных шардов еще нет
+        assertTrue(second.claimShards().isEmpty());
+
+        // Первый узел видит второй и отдает лишнее (между прогонами - по heartbeat), второй добирает
+        first.heartbeat();
+        ShardClaim secondClaim = second.claimShards();
+        ShardClaim firstClaim = first.claimShards();
+        assertEquals(SHARDS / 2, ownedBy(firstClaim));
+        assertEquals(SHARDS / 2, ownedBy(secondClaim));
+
+        // Каждый клиент принадлежит ровно одному узлу
+        for (int i = 0; i < 1000; i++) {
+            String guid = UUID.randomUUID().toString();
+            assertTrue(firstClaim.owns(guid) ^ secondClaim.owns(guid), guid);
+        }
+        assertTrue(firstClaim.owns(null) ^ secondClaim.owns(null));
+    }
+
+    @Test
+    void testSharesOfDeadNodeMoveToLiveNodes() {
+        ShardLeaseService first = node();
+        ShardLeaseService second = node();
+        ShardLeaseService third = node();
+        first.claimShards();
+        second.claimShards();
+        third.claimShards();
+        first.heartbeat();
+        second.heartbeat();
+        third.heartbeat();
+        // 8 шардов на три узла: 3 + 3 + 2, все розданы
+        assertEquals(SHARDS, table.leasedShards());
+
+        // Третий узел умер: его отметка и аренды истекли, живые узлы делят все шарды
+        table.advance(LEASE_TTL.dividedBy(2));
+        first.heartbeat();
+        second.heartbeat();
+        table.advance(LEASE_TTL.dividedBy(2).plusSeconds(1));
+        first.heartbeat();
+        second.heartbeat();
+        assertEquals(SHARDS / 2, ownedBy(first.claimShards()));
+        assertEquals(SHARDS / 2, ownedBy(second.claimShards()));
+    }
+
+    @Test
+    void testStoppedNodeLeavesAtOnce() {
+        ShardLeaseService first = node();
+        ShardLeaseService second = node();
+        first.claimShards();
+        second.claimShards();
+        first.heartbeat();
+        second.claimShards();
+
+        second.releaseAll();
+
+        // Без ожидания истечения аренды все шарды снова у первого узла
+        assertEquals(SHARDS, ownedBy(first.claimShards()));
+    }
+
+    private ShardLeaseService node() {
+        ShardLeaseService service = new ShardLeaseService(table);
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "shardCount", SHARDS);
+        ReflectionTestUtils.setField(service, "leaseTtl", LEASE_TTL);
+        return service;
+    }
+
+    // Сколько шардов у узла: проверяется по одному guid каждого шарда
+    private static int ownedBy(ShardClaim claim) {
+        Map<Integer, String> guidOfShard = new HashMap<>();
+        for (int i = 0; guidOfShard.size() < SHARDS; i++) {
+            String guid = "guid-" + i;
+            guidOfShard.putIfAbsent(Math.floorMod(guid.hashCode(), SHARDS), guid);
+        }
+        return (int) guidOfShard.values().stream().filter(claim::owns).count();
+    }
+
+    /**
+     * Таблицы import_node и import_shard_lease в памяти с часами, которые двигает тест. Понимает
+     * только запросы ShardLeaseService и повторяет их условия по времени.
+     */
+    private static final class LeaseTable extends JdbcTemplate {
+        private final Map<String, Long> nodes = new HashMap<>();
+        private final Map<Integer, Lease> leases = new HashMap<>();
+        private long now;
+
+        private void advance(Duration duration) {
+            now += duration.toMillis();
+        }
+
+        private long leasedShards() {
+            return leases.values().stream().filter(lease -> lease.until > now).count();
+        }
+
+        @Override
+        public int update(String sql, Object... args) {
+            if (sql.startsWith("INSERT INTO import_node")) {
+                nodes.put((String) args[0], now + (Long) args[1]);
+                return 1;
+            }
+            if (sql.startsWith("DELETE FROM import_node")) {
+                return nodes.remove((String) args[0]) != null ? 1 : 0;
+            }
+            if (sql.startsWith("UPDATE import_shard_lease SET lease_until = now(),")) {
+                Lease lease = leases.get((Integer) args[1]);
+                if (lease != null && lease.owner.equals(args[0])) {
+                    lease.until = now;
+                    return 1;
+                }
+                return 0;
+            }
+            throw new UnsupportedOperationException(sql);
+        }
+
+        @Override
+        public <T> List<T> queryForList(String sql, Class<T> elementType) {
+            return queryForList(sql, elementType, new Object[0]);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> List<T> queryForList(String sql, Class<T> elementType, Object... args) {
+            if (sql.startsWith("SELECT node_id FROM import_node")) {
+                return (List<T>) nodes.entrySet().stream()
+                        .filter(node -> node.getValue() > now)
+                        .map(Map.Entry::getKey)
+                        .sorted()
+                        .toList();
+            }
+            if (sql.startsWith("UPDATE import_shard_lease")) {
+                List<Integer> renewed = new ArrayList<>();
+                leases.forEach((shard, lease) -> {
+                    if (lease.owner.equals(args[1]) && lease.until > now) {
+                        lease.until = now + (Long) args[0];
+                        renewed.add(shard);
+                    }
+                });
+                return (List<T>) renewed;
+            }
+            if (sql.startsWith("INSERT INTO import_shard_lease")) {
+                Integer shard = (Integer) args[0];
+                Lease lease = leases.get(shard);
+                if (lease != null && lease.until > now) {
+                    return List.of();
+                }
+                leases.put(shard, new Lease((String) args[1], now + (Long) args[2]));
+                return (List<T>) List.of(shard);
+            }
+            throw new UnsupportedOperationException(sql);
+        }
+    }
+
+    private static final class Lease {
+        private final String owner;
+        private long until;
+
+        private Lease(String owner, long until) {
+            this.owner = owner;
+            this.until = until;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.ausiankou.notesimporter.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// В пакете очереди: AgencyWorkQueue - деталь реализации NoteImportService
+class AgencyWorkQueueTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Test
+    void testAgencyLimitIsNeverExceeded() throws Exception {
+        AgencyWorkQueue<Integer> queue = new AgencyWorkQueue<>(2, 0);
+        for (int i = 0; i < 50; i++) {
+            queue.put("agency-a", i);
+            queue.put("agency-b", i);
+        }
+        queue.close();
+
+        Map<String, AtomicInteger> inFlight = Map.of("agency-a", new AtomicInteger(), "agency-b", new AtomicInteger());
+        Map<String, AtomicInteger> maxInFlight = Map.of("agency-a", new AtomicInteger(), "agency-b", new AtomicInteger());
+        AtomicInteger processed = new AtomicInteger();
+        try (ExecutorService workers = Executors.newFixedThreadPool(8)) {
+            for (int w = 0; w < 8; w++) {
+                int worker = w;
+                workers.submit(() -> {
+                    for (AgencyWorkQueue.Work<Integer> work = queue.take(worker); work != null; work = queue.take(worker)) {
+                        int current = inFlight.get(work.agency()).incrementAndGet();
+                        maxInFlight.get(work.agency()).accumulateAndGet(current, Math::max);
+                        Thread.sleep(1);
+                        inFlight.get(work.agency()).decrementAndGet();
+                        processed.incrementAndGet();
+                        work.done();
+                    }
+                    return null;
+                });
+            }
+        }
+
+        // Восемь исполнителей, но у агентства в работе не больше двух элементов
+        assertEquals(100, processed.get());
+        assertTrue(maxInFlight.get("agency-a").get() <= 2, maxInFlight.toString());
+        assertTrue(maxInFlight.get("agency-b").get() <= 2, maxInFlight.toString());
+    }
+
+    @Test
+    void testSlowAgencyDoesNotBlockOtherAgencies() throws Exception {
+        AgencyWorkQueue<String> queue = new AgencyWorkQueue<>(1, 0);
+        queue.put("slow", "slow-1");
+        queue.put("slow", "slow-2");
+        queue.put("fast", "fast-1");
+
+        // Элемент медленного агентства в работе и не закрыт: его следующий элемент ждет,
+        // а исполнитель с тем же домашним агентством забирает работу другого
+        AgencyWorkQueue.Work<String> slow = queue.take(0);
+        assertEquals("slow-1", slow.item());
+        try (ExecutorService worker = Executors.newSingleThreadExecutor()) {
+            Future<AgencyWorkQueue.Work<String>> next = worker.submit(() -> queue.take(0));
+            assertEquals("fast-1", next.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).item());
+
+            // Оба агентства в пределе: исполнитель ждет, пока медленный элемент не закроется
+            Future<AgencyWorkQueue.Work<String>> blocked = worker.submit(() -> queue.take(0));
+            assertThrows(TimeoutException.class, () -> blocked.get(200, TimeUnit.MILLISECONDS));
+            slow.done();
+            assertEquals("slow-2", blocked.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).item());
+        }
+    }
+
+    @Test
+    void testPutBlocksAtCapacity() throws Exception {
+        AgencyWorkQueue<Integer> queue = new AgencyWorkQueue<>(0, 2);
+        queue.put("agency", 1);
+        queue.put("other", 2);
+
+        try (ExecutorService producer = Executors.newSingleThreadExecutor()) {
+            Future<?> put = producer.submit(() -> {
+                queue.put("agency", 3);
+                return null;
+            });
+            assertThrows(TimeoutException.class, () -> put.get(200, TimeUnit.MILLISECONDS));
+
+            // Место освобождает взятый элемент, закрывать его не нужно
+            assertEquals(1, queue.take(0).item());
+            put.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        assertNotNull(queue.take(0));
+        assertNotNull(queue.take(0));
+    }
+
+    @Test
+    void testTakeReturnsNullAfterCloseOnceDrained() throws Exception {
+        AgencyWorkQueue<Integer> queue = new AgencyWorkQueue<>(1, 0);
+        queue.put("agency", 1);
+
+        try (ExecutorService worker = Executors.newSingleThreadExecutor()) {
+            AgencyWorkQueue.Work<Integer> first = queue.take(0);
+            assertEquals(1, first.item());
+            // Очередь пуста, но не закрыта: исполнитель ждет
+            Future<AgencyWorkQueue.Work<Integer>> waiting = worker.submit(() -> queue.take(0));
+            assertThrows(TimeoutException.class, () -> waiting.get(200, TimeUnit.MILLISECONDS));
+
+            queue.put("agency", 2);
+            queue.close();
+            // Оставшийся элемент отдается после закрытия, когда агентство освободилось
+            first.done();
+            assertEquals(2, waiting.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).item());
+            assertNull(worker.submit(() -> queue.take(0)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        assertNull(queue.take(1));
+    }
+}